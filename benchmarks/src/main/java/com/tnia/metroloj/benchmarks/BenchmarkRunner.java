@@ -0,0 +1,23 @@
+package com.tnia.metroloj.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so that the allocation
+ * rate (gc.alloc.rate.norm, in bytes per operation) is reported next to the
+ * throughput. Accepts the usual JMH command line options, e.g.
+ * <pre>java -jar target/benchmarks.jar FindMax -p size=256x256x64 -rf json</pre>
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions options = new CommandLineOptions(args);
+		new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build())
+			.run();
+	}
+}
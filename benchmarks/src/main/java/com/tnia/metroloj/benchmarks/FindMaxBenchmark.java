@@ -0,0 +1,45 @@
+package com.tnia.metroloj.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import metroloJ.utilities.findMax;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class FindMaxBenchmark {
+
+	@Param({ "64x64x32", "256x256x64", "512x512x128" })
+	String size;
+
+	@Param({ "8", "16", "32" })
+	int bitDepth;
+
+	ImagePlus ip;
+
+	@Setup
+	public void setup() {
+		ip = SyntheticBeads.grid(size, bitDepth, 42);
+	}
+
+	@Benchmark
+	public int[] getAllCoordinates() {
+		return new findMax().getAllCoordinates(ip);
+	}
+}
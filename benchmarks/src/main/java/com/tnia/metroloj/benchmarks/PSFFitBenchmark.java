@@ -0,0 +1,77 @@
+package com.tnia.metroloj.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import metroloJ.resolution.PSFprofiler;
+import metroloJ.resolution.gaussianFit;
+import metroloJ.resolution.gaussianFitter;
+
+/**
+ * Gaussian fit of a single profile, and full PSF analysis (maximum, 3 profiles
+ * and their fits) of a single bead stack
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PSFFitBenchmark {
+
+	@Param({ "64x64x32", "256x256x64", "512x512x128" })
+	String size;
+
+	@Param({ "8", "16", "32" })
+	int bitDepth;
+
+	ImagePlus ip;
+
+	double[] x, y, init;
+
+	gaussianFitter fitter;
+
+	gaussianFit fit;
+
+	@Setup
+	public void setup() {
+		ip = SyntheticBeads.single(size, bitDepth, 42);
+
+		int n = ip.getWidth();
+		Random random = new Random(42);
+		x = new double[n];
+		y = new double[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = i * 0.1;
+			double dx = x[i] - n * 0.05;
+			y[i] = SyntheticBeads.BACKGROUND + 2000 * Math.exp(-dx * dx / (2 * 0.15 * 0.15)) +
+				random.nextGaussian() * 3;
+		}
+		init = new double[] { SyntheticBeads.BACKGROUND, 2000, n * 0.05 + 0.05, 0.2 };
+		fitter = new gaussianFitter();
+		fit = new gaussianFit();
+	}
+
+	@Benchmark
+	public gaussianFit gaussianFit() {
+		return fitter.fit(x, y, 0, x.length, init, fit);
+	}
+
+	@Benchmark
+	public double[] psfProfiler() {
+		return new PSFprofiler(ip).getResolutions();
+	}
+}
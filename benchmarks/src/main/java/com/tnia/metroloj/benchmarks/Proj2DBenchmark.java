@@ -0,0 +1,61 @@
+package com.tnia.metroloj.benchmarks;
+
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import metroloJ.utilities.proj2D;
+import metroloJ.utilities.sideViewGenerator;
+
+/**
+ * proj2D works on 2D side views, as zProfiler does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class Proj2DBenchmark {
+
+	@Param({ "64x64x32", "256x256x64", "512x512x128" })
+	String size;
+
+	@Param({ "8", "16" })
+	int bitDepth;
+
+	@Param({ "0", "5" })
+	int projType;
+
+	ImagePlus xz;
+
+	Rectangle roi;
+
+	proj2D proj;
+
+	@Setup
+	public void setup() {
+		ImagePlus ip = SyntheticBeads.single(size, bitDepth, 42);
+		xz = new sideViewGenerator().getXZview(ip, sideViewGenerator.MAX_METHOD, true);
+		roi = new Rectangle(xz.getWidth() / 4, 0, xz.getWidth() / 2, xz.getHeight());
+		proj = new proj2D();
+		proj.setProjType(projType, proj2D.X_AXIS);
+	}
+
+	@Benchmark
+	public double[] doProj() {
+		return proj.doProj(xz, roi);
+	}
+}
@@ -0,0 +1,110 @@
+package com.tnia.metroloj.benchmarks;
+
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+/**
+ * Deterministic synthetic bead stacks: 3D Gaussian beads on a noisy
+ * background, sampled at 0.1 x 0.1 x 0.2 micron. A given set of arguments
+ * always produces the same pixels.
+ */
+public class SyntheticBeads {
+
+	/** Lateral and axial standard deviations of the beads, in pixels */
+	public static final double SIGMA_XY = 1.5;
+	public static final double SIGMA_Z = 3;
+
+	public static final double BACKGROUND = 100;
+
+	/**
+	 * Creates a stack holding a grid of beads, one every 32 pixels, at random
+	 * sub-pixel positions and intensities
+	 *
+	 * @param size width x height x depth, e.g. "256x256x64"
+	 * @param bitDepth 8, 16 or 32
+	 * @param seed seed of the random generator
+	 */
+	public static ImagePlus grid(String size, int bitDepth, long seed) {
+		int[] dims = parseSize(size);
+		Random random = new Random(seed);
+		int nx = Math.max(1, dims[0] / 32), ny = Math.max(1, dims[1] / 32);
+		double[][] beads = new double[nx * ny][];
+		for (int j = 0; j < ny; j++) {
+			for (int i = 0; i < nx; i++) {
+				beads[i + j * nx] = new double[] { 16 + 32 * i + random.nextDouble(), 16 + 32 * j +
+					random.nextDouble(), dims[2] / 2 + random.nextDouble() * 4 - 2, 1000 + random
+						.nextDouble() * 2000 };
+			}
+		}
+		return create(dims, beads, bitDepth, random);
+	}
+
+	/**
+	 * Creates a stack holding a single bead, close to its centre
+	 *
+	 * @param size width x height x depth, e.g. "64x64x32"
+	 * @param bitDepth 8, 16 or 32
+	 * @param seed seed of the random generator
+	 */
+	public static ImagePlus single(String size, int bitDepth, long seed) {
+		int[] dims = parseSize(size);
+		Random random = new Random(seed);
+		double[][] beads = { { dims[0] / 2 + random.nextDouble(), dims[1] / 2 + random
+			.nextDouble(), dims[2] / 2 + random.nextDouble(), 2000 } };
+		return create(dims, beads, bitDepth, random);
+	}
+
+	private static ImagePlus create(int[] dims, double[][] beads, int bitDepth, Random random) {
+		int w = dims[0], h = dims[1], d = dims[2];
+		ImageStack is = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			float[] pixels = new float[w * h];
+			for (int i = 0; i < pixels.length; i++) pixels[i] = (float) (BACKGROUND + random
+				.nextGaussian() * 3);
+			for (double[] bead : beads) {
+				double ez = Math.exp(-(z - bead[2]) * (z - bead[2]) / (2 * SIGMA_Z * SIGMA_Z));
+				int x0 = (int) Math.max(0, bead[0] - 5 * SIGMA_XY), x1 = (int) Math.min(w - 1,
+					bead[0] + 5 * SIGMA_XY);
+				int y0 = (int) Math.max(0, bead[1] - 5 * SIGMA_XY), y1 = (int) Math.min(h - 1,
+					bead[1] + 5 * SIGMA_XY);
+				for (int y = y0; y <= y1; y++) {
+					for (int x = x0; x <= x1; x++) {
+						double r2 = (x - bead[0]) * (x - bead[0]) + (y - bead[1]) * (y - bead[1]);
+						pixels[x + y * w] += (float) (bead[3] * ez * Math.exp(-r2 / (2 * SIGMA_XY *
+							SIGMA_XY)));
+					}
+				}
+			}
+			FloatProcessor fp = new FloatProcessor(w, h, pixels, null);
+			switch (bitDepth) {
+				case 8:
+					fp.multiply(255.0 / 3100);
+					is.addSlice("", fp.convertToByte(false));
+					break;
+				case 16:
+					is.addSlice("", fp.convertToShort(false));
+					break;
+				default:
+					is.addSlice("", fp);
+			}
+		}
+
+		ImagePlus ip = new ImagePlus("beads", is);
+		Calibration cal = ip.getCalibration();
+		cal.pixelWidth = 0.1;
+		cal.pixelHeight = 0.1;
+		cal.pixelDepth = 0.2;
+		cal.setUnit("micron");
+		return ip;
+	}
+
+	private static int[] parseSize(String size) {
+		String[] parts = size.split("x");
+		return new int[] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer
+			.parseInt(parts[2]) };
+	}
+}
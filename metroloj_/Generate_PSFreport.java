@@ -7,6 +7,7 @@ import metroloJ.report.PSFprofilerReport;
 import metroloJ.setup.metroloJDialog;
 import metroloJ.utilities.tricks.fileTricks;
 import metroloJ.utilities.doCheck;
+import metroloJ.utilities.projectionCache;
 import metroloJ.utilities.tricks.imageTricks;
 
 
@@ -62,8 +63,14 @@ public class Generate_PSFreport implements PlugIn{
             //This part is requiered to avoid a mix-up between local and global calibrations
             imageTricks.tempRemoveGlobalCal(mjd.ip);
 
-            PSFprofilerReport ppr=new PSFprofilerReport(mjd);
-            ppr.saveReport(path, mjd.save);
+            //Projections are shared between the analysis and the report for the duration of the run
+            projectionCache.beginRun();
+            try{
+                PSFprofilerReport ppr=new PSFprofilerReport(mjd);
+                ppr.saveReport(path, mjd.save);
+            }finally{
+                projectionCache.endRun();
+            }
 
             //This part is requiered to go back to the original calibration situation
             imageTricks.restoreOriginalCal(mjd.ip);
@@ -7,10 +7,12 @@ import ij.plugin.PlugIn;
 import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import metroloJ.coalignement.coAlignement;
 import metroloJ.report.coAlignementReport;
 import metroloJ.setup.microscope;
 import metroloJ.utilities.tricks.fileTricks;
 import metroloJ.utilities.doCheck;
+import metroloJ.utilities.projectionCache;
 import metroloJ.utilities.tricks.imageTricks;
 
 
@@ -54,6 +56,7 @@ public class Generate_coAlignementReport implements PlugIn{
     double NA=Prefs.get("coAlignementReport_NA.double", 1.4);
     double pinhole=Prefs.get("coAlignementReport_pinhole.double", 1.0);
     boolean save=Prefs.get("coAlignementReport_save.boolean", false);
+    int centreMethod=(int) Prefs.get("coAlignementReport_centre.double", coAlignement.PROJECTION_CENTRE);
 
     public void run(String arg) {
        if (!(doCheck.isVersionUpToDate() && doCheck.isThereAnImage() && doCheck.atLeastNOpenedStacks(2))) return;
@@ -89,6 +92,7 @@ public class Generate_coAlignementReport implements PlugIn{
        if (nbStacks>2) gd.addNumericField("Wavelength_3 (nm)", Wavelength3, 1);
        gd.addNumericField("NA", NA, 2);
        gd.addNumericField("Pinhole (AU)", pinhole, 2);
+       gd.addChoice("Centres' detection", coAlignement.CENTRE_METHODS, coAlignement.CENTRE_METHODS[centreMethod]);
        gd.addTextAreas("Sample infos", "Comments", 10, 20);
        gd.addCheckbox("Save image/plots/data", save);
        gd.showDialog();
@@ -105,6 +109,7 @@ public class Generate_coAlignementReport implements PlugIn{
        if (nbStacks>2) Wavelength3=gd.getNextNumber();
        NA=gd.getNextNumber();
        pinhole=gd.getNextNumber();
+       centreMethod=gd.getNextChoiceIndex();
        String sampleInfos=gd.getNextText();
        sampleInfos=sampleInfos.replace("Sample infos", "");
        String comments=gd.getNextText();
@@ -118,6 +123,7 @@ public class Generate_coAlignementReport implements PlugIn{
        Prefs.set("coAlignementReport_wave3.double", Wavelength3);
        Prefs.set("coAlignementReport_NA.double", NA);
        Prefs.set("coAlignementReport_pinhole.double", pinhole);
+       Prefs.set("coAlignementReport_centre.double", centreMethod);
        Prefs.set("coAlignementReport_save.boolean", save);
 
        SaveDialog sd=new SaveDialog("Save the co-alignement report to...", "coAlignement report"+(title.equals("")?title:" "+title), ".pdf");
@@ -162,8 +168,14 @@ public class Generate_coAlignementReport implements PlugIn{
            //This part is requiered to avoid a mix-up between local and global calibrations
            imageTricks.tempRemoveGlobalCal(ip1);
 
-           coAlignementReport coAR=new coAlignementReport(ipArray, microArray, title);
-           coAR.saveReport(path, save);
+           //Projections are shared between the analysis and the report for the duration of the run
+           projectionCache.beginRun();
+           try{
+               coAlignementReport coAR=new coAlignementReport(ipArray, microArray, title, centreMethod);
+               coAR.saveReport(path, save);
+           }finally{
+               projectionCache.endRun();
+           }
 
            //This part is requiered to go back to the original calibration situation
            imageTricks.restoreOriginalCal(ip1);
@@ -7,11 +7,18 @@ import ij.util.Tools;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import metroloJ.resolution.zProfileEstimator;
 import metroloJ.report.zProfilerReport;
 import metroloJ.setup.metroloJDialog;
 import metroloJ.utilities.tricks.fileTricks;
 import metroloJ.utilities.tricks.imageTricks;
 import metroloJ.utilities.doCheck;
+import metroloJ.utilities.projectionCache;
 
 /**
  *
@@ -45,6 +52,21 @@ public class Generate_zProfileReport implements PlugIn, AdjustmentListener, Text
     
     Vector sliders, values;
 
+    /** Delay, in ms, without any change of the ROI before the FWHM preview is computed **/
+    public static final long PREVIEW_DELAY=150;
+
+    /** Label displaying the FWHM preview **/
+    Label previewLabel;
+
+    /** Computes the FWHM preview, created on first use **/
+    zProfileEstimator estimator;
+
+    /** Runs the FWHM preview out of the AWT thread **/
+    ScheduledExecutorService previewExecutor;
+
+    /** Pending FWHM preview, cancelled when the ROI changes again before it has started **/
+    ScheduledFuture<?> previewFuture;
+
     public void run(String arg) {
         if (!(doCheck.isVersionUpToDate() && doCheck.isThereAnImage() && doCheck.isNoMoreThan16bits() && doCheck.isCalibrated())) return;
 
@@ -60,8 +82,20 @@ public class Generate_zProfileReport implements PlugIn, AdjustmentListener, Text
         values=mjd.getNumericFields();
         ((TextField)values.elementAt(0)).addTextListener(this);
         ((TextField)values.elementAt(1)).addTextListener(this);
+        mjd.addMessage("FWHM preview: computing...            ");
+        if (mjd.getMessage() instanceof Label) previewLabel=(Label) mjd.getMessage();
         mjd.addAll();
+
+        previewExecutor=Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread t=new Thread(r, "zProfile preview");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        schedulePreview((int) (mjd.ip.getWidth()/2+.5), 5);
         mjd.showDialog();
+        previewExecutor.shutdownNow();
 
         if (mjd.wasCanceled()) return;
 
@@ -79,8 +113,14 @@ public class Generate_zProfileReport implements PlugIn, AdjustmentListener, Text
             //This part is requiered to avoid a mix-up between local and global calibrations
             imageTricks.tempRemoveGlobalCal(mjd.ip);
 
-            zProfilerReport zpr=new zProfilerReport(mjd);
-            zpr.saveReport(path, mjd.save);
+            //Projections are shared between the analysis and the report for the duration of the run
+            projectionCache.beginRun();
+            try{
+                zProfilerReport zpr=new zProfilerReport(mjd);
+                zpr.saveReport(path, mjd.save);
+            }finally{
+                projectionCache.endRun();
+            }
 
             //This part is requiered to go back to the original calibration situation
             imageTricks.restoreOriginalCal(mjd.ip);
@@ -100,11 +140,41 @@ public class Generate_zProfileReport implements PlugIn, AdjustmentListener, Text
         int x=((Scrollbar)sliders.elementAt(0)).getValue();
         int width=((Scrollbar)sliders.elementAt(1)).getValue();
         setROI(x, width);
+        schedulePreview(x, width);
     }
 
     public void textValueChanged(TextEvent e) {
         int x=(int) Tools.parseDouble(((TextField)values.elementAt(0)).getText());
         int width=(int) Tools.parseDouble(((TextField)values.elementAt(1)).getText());
         setROI(x, width);
+        schedulePreview(x, width);
+    }
+
+    /**
+     * Schedules the computation of the FWHM preview for the current ROI on the background thread,
+     * replacing the pending one if any so that only the last position is fitted while the sliders are dragged
+     * @param x the ROI's centre
+     * @param width the ROI's width
+     */
+    public synchronized void schedulePreview(final int x, final int width){
+        if (previewLabel==null || previewExecutor==null || previewExecutor.isShutdown()) return;
+        if (previewFuture!=null) previewFuture.cancel(false);
+        previewFuture=previewExecutor.schedule(new Runnable(){
+            public void run(){
+                if (estimator==null) estimator=new zProfileEstimator(mjd.ip);
+                final String text;
+                if (width<=0){
+                    text="FWHM preview: NaN";
+                }else{
+                    double fwhm=estimator.getResolution((int) (x-width/2-.5), width);
+                    text="FWHM preview: "+IJ.d2s(fwhm, 3)+" "+estimator.getUnit();
+                }
+                EventQueue.invokeLater(new Runnable(){
+                    public void run(){
+                        previewLabel.setText(text);
+                    }
+                });
+            }
+        }, PREVIEW_DELAY, TimeUnit.MILLISECONDS);
     }
 }
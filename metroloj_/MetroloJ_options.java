@@ -0,0 +1,58 @@
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import metroloJ.utilities.resultCache;
+
+/**
+ *
+ *  MetroloJ_options v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/**
+ * Sets the options shared by all reports: whether analysis results are cached on disk (see resultCache), and the cache's maximum size.
+ * @author agent
+ */
+public class MetroloJ_options implements PlugIn{
+    public void run(String arg) {
+        GenericDialog gd=new GenericDialog("MetroloJ options");
+        gd.addCheckbox("Cache analysis results (re-generated reports reuse the fits)", resultCache.isEnabled());
+        gd.addNumericField("Maximum cache size", resultCache.getMaxSize()/(1024.0*1024.0), 0, 6, "MB");
+        gd.addCheckbox("Empty the cache now", false);
+        gd.addMessage("Cache folder: "+resultCache.folder.getPath());
+        gd.showDialog();
+
+        if (gd.wasCanceled()) return;
+
+        boolean enabled=gd.getNextBoolean();
+        double maxSize=gd.getNextNumber();
+        boolean clear=gd.getNextBoolean();
+
+        if (gd.invalidNumber() || maxSize<=0){
+            IJ.error("MetroloJ options", "The maximum cache size should be a positive number of MB");
+            return;
+        }
+
+        resultCache.setEnabled(enabled);
+        resultCache.setMaxSize(maxSize);
+        if (clear) resultCache.clear();
+    }
+}
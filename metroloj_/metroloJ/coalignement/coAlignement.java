@@ -27,15 +27,20 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.NewImage;
 import ij.measure.*;
+import ij.process.ColorProcessor;
 import ij.plugin.RGBStackMerge;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import metroloJ.setup.microscope;
 import metroloJ.utilities.findCentre;
+import metroloJ.utilities.resultCache;
 import metroloJ.utilities.sideViewGenerator;
+import metroloJ.utilities.tricks.threadTricks;
 
 /**
  * PSFprofiler allows to retrieve from either a 2D or 3D image x, y and z intensity profiles and calculate the corresponding rsolutions.
@@ -52,6 +57,15 @@ public class coAlignement {
     /** Reference to the z dimension **/
     public static final int Z=2;
 
+    /** Centres are retrieved as the geometrical centres of the thresholded XY and XZ projections (see findCentre.getAllCoordinates) **/
+    public static final int PROJECTION_CENTRE=0;
+
+    /** Centres are retrieved as the sub-pixel centroids of the raw intensities (see findCentre.getSubPixelCoordinates) **/
+    public static final int SUBPIXEL_CENTRE=1;
+
+    /** Names of the centre detection methods, to be used in dialogs and reports **/
+    public static final String[] CENTRE_METHODS={"Projections' geometrical centre", "Sub-pixel centroid"};
+
     /** Red ImagePlus on which coAlignement is built **/
     public ImagePlus red=null;
 
@@ -106,14 +120,51 @@ public class coAlignement {
     /** Stores the microscope section ,to be used in the report**/
     public String microSection="";
 
+    /** Stores the method used to retrieve the centres (PROJECTION_CENTRE or SUBPIXEL_CENTRE) **/
+    public int centreMethod=PROJECTION_CENTRE;
+
+    /** Version of the algorithm, part of the resultCache key: to be incremented with any change that may modify the cached results **/
+    static final String CACHE_VERSION="2";
+
+    /** Key under which the results are stored in the resultCache, null if the cache is not to be used **/
+    String cacheKey=null;
+
+    /** Stores the pixel-derived results, as saved in/retrieved from the resultCache **/
+    cachedResults cached=null;
+
     /**
      * Builds a new coAlignement object
      * @param ip array containing the 2 or 3 images to analyse
      * @param conditions stores the conditions of acquisition (especially the wavelengths of acquisition)
      */
     public coAlignement(ImagePlus[] ip, microscope[] conditions){
+        this(ip, conditions, false);
+    }
+
+    /**
+     * Builds a new coAlignement object, possibly retrieving the centres and side view from the resultCache.
+     * Only the microscope-dependent results (reference distances) are then recomputed.
+     * @param ip array containing the 2 or 3 images to analyse
+     * @param conditions stores the conditions of acquisition (especially the wavelengths of acquisition)
+     * @param useCache true to use the resultCache (if enabled)
+     */
+    public coAlignement(ImagePlus[] ip, microscope[] conditions, boolean useCache){
+        this(ip, conditions, useCache, PROJECTION_CENTRE);
+    }
+
+    /**
+     * Builds a new coAlignement object, possibly retrieving the centres and side view from the resultCache.
+     * Only the microscope-dependent results (reference distances) are then recomputed.
+     * @param ip array containing the 2 or 3 images to analyse
+     * @param conditions stores the conditions of acquisition (especially the wavelengths of acquisition)
+     * @param useCache true to use the resultCache (if enabled)
+     * @param centreMethod method used to retrieve the centres: PROJECTION_CENTRE or SUBPIXEL_CENTRE
+     */
+    public coAlignement(ImagePlus[] ip, microscope[] conditions, boolean useCache, int centreMethod){
         if (ip.length<2) throw new IllegalArgumentException("coAlignement requieres at least 2 ImagePlus.");
         if (ip.length!=conditions.length) throw new IllegalArgumentException("coAlignement requieres the ImagePlus array to be the same size as the microscope array.");
+        if (centreMethod!=PROJECTION_CENTRE && centreMethod!=SUBPIXEL_CENTRE) throw new IllegalArgumentException("coAlignement requieres the centre method to be either PROJECTION_CENTRE or SUBPIXEL_CENTRE.");
+        this.centreMethod=centreMethod;
         red=ip[0];
         green=ip[1];
         blue=null;
@@ -129,21 +180,44 @@ public class coAlignement {
         if (ip[2]!=null) microSection+=", "+micro[2].wavelength;
         microSection+=" nm\nNA: "+micro[0].NA+"\nSampling rate: "+round(cal.pixelWidth,3)+"x"+round(cal.pixelHeight,3)+"x"+round(cal.pixelDepth,3)+" "+cal.getUnit();
         if (micro[0].microscope==microscope.CONFOCAL) microSection+="\nPinhole: "+micro[0].pinhole+" Airy Units";
+        microSection+="\nCentres' detection: "+CENTRE_METHODS[centreMethod];
         
+        if (useCache && resultCache.isEnabled()){
+            cacheKey=resultCache.getKey("coAlignement", CACHE_VERSION, ""+centreMethod, red, green, blue);
+            cached=resultCache.get(cacheKey, cachedResults.class);
+        }
         getCentresAndDist();
     }
 
     /**
-     * Retrieves the centres for all images and calculates the distances between centres
+     * Stores the pixel-derived results of a coAlignement (centres and side view), to be saved in/retrieved from the resultCache
+     */
+    static class cachedResults implements Serializable {
+        private static final long serialVersionUID=1L;
+
+        double[][] centres;
+        int sideViewWidth, sideViewHeight;
+        int[] sideView=null;
+    }
+
+    /**
+     * Retrieves the centres for all images (unless retrieved from the cache), channels being processed in parallel, and calculates the distances between centres
      */
     private void getCentresAndDist(){
-        redCentre=new findCentre().getAllCoordinates(red);
-        greenCentre=new findCentre().getAllCoordinates(green);
+        if (cached==null){
+            cached=new cachedResults();
+            ImagePlus[] channels={red, green, blue};
+            cached.centres=new double[3][];
+            threadTricks.getPool().invoke(new centreTask(channels, centreMethod, cached.centres, 0, blue==null?2:3));
+            if (cacheKey!=null) resultCache.put(cacheKey, cached);
+        }
+        redCentre=cached.centres[0];
+        greenCentre=cached.centres[1];
         RGRefDist=calcRefDist(redCentre, greenCentre, micro[1]);
         RGDistUnCal=dist(redCentre, greenCentre, 1, 1, 1);
         RGDistCal=dist(redCentre, greenCentre, cal.pixelWidth, cal.pixelHeight, cal.pixelDepth);
         if (blue!=null){
-            blueCentre=new findCentre().getAllCoordinates(blue);
+            blueCentre=cached.centres[2];
             RBDistUnCal=dist(redCentre, blueCentre, 1, 1, 1);
             RBDistCal=dist(redCentre, blueCentre, cal.pixelWidth, cal.pixelHeight, cal.pixelDepth);
             RBRefDist=calcRefDist(redCentre, blueCentre, micro[2]);
@@ -153,6 +227,39 @@ public class coAlignement {
         }
     }
 
+    /**
+     * Retrieves the centres of a range of channels, splitting the work in halves until a single channel is left
+     */
+    private static class centreTask extends RecursiveAction {
+        private static final long serialVersionUID=1L;
+
+        ImagePlus[] channels;
+        int centreMethod;
+        double[][] centres;
+        int start, end;
+
+        centreTask(ImagePlus[] channels, int centreMethod, double[][] centres, int start, int end){
+            this.channels=channels;
+            this.centreMethod=centreMethod;
+            this.centres=centres;
+            this.start=start;
+            this.end=end;
+        }
+
+        @Override
+        protected void compute(){
+            if (end-start<=1){
+                if (end>start){
+                    findCentre fc=new findCentre();
+                    centres[start]=centreMethod==SUBPIXEL_CENTRE?fc.getSubPixelCoordinates(channels[start]):fc.getAllCoordinates(channels[start]);
+                }
+            }else{
+                int middle=(start+end)/2;
+                invokeAll(new centreTask(channels, centreMethod, centres, start, middle), new centreTask(channels, centreMethod, centres, middle, end));
+            }
+        }
+    }
+
     /**
      * Calculates a distance (either 2D or 3D) between 2 sets of coordinates
      * @param centre1 coordinates set of the first centre
@@ -253,6 +360,10 @@ public class coAlignement {
         try {
             out = new BufferedWriter(new FileWriter(path + filename + ".xls"));
 
+            out.write("Centres' detection\t"+CENTRE_METHODS[centreMethod]);
+            out.newLine();
+
+            out.newLine();
             out.write("Pixel shift");
             out.newLine();
             saveArray(getPixShiftArray(), out);
@@ -299,6 +410,7 @@ public class coAlignement {
      * @return the side view as an ImagePlus
      */
     public ImagePlus getSideView(){
+        if (cached.sideView!=null) return new ImagePlus("Co-alignement side-view", new ColorProcessor(cached.sideViewWidth, cached.sideViewHeight, cached.sideView.clone()));
         sideViewGenerator svg=new sideViewGenerator();
         ImagePlus redView=svg.getPanelView(red, sideViewGenerator.MAX_METHOD, true, true, 5, true, redCentre, 5);
         ImagePlus greenView=svg.getPanelView(green, sideViewGenerator.MAX_METHOD, true, true, 5, true, greenCentre, 5);
@@ -312,6 +424,12 @@ public class coAlignement {
             dummyBlue=null;
         }
         ImageStack is=new RGBStackMerge().mergeStacks(redView.getWidth(), redView.getHeight(), 1, redView.getImageStack(), greenView.getImageStack(), blueView.getImageStack(), false);
+        if (cacheKey!=null){
+            cached.sideViewWidth=is.getWidth();
+            cached.sideViewHeight=is.getHeight();
+            cached.sideView=((int[]) is.getPixels(1)).clone();
+            resultCache.put(cacheKey, cached);
+        }
         return new ImagePlus("Co-alignement side-view", is);
     }
 
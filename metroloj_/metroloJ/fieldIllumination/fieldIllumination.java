@@ -26,20 +26,23 @@ package metroloJ.fieldIllumination;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
-import ij.gui.Line;
 import ij.gui.NewImage;
 import ij.gui.Plot;
-import ij.gui.ProfilePlot;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import java.awt.Color;
 import java.awt.Font;
+import java.io.Serializable;
 import java.util.Vector;
+import java.util.concurrent.RecursiveAction;
+import metroloJ.utilities.resultCache;
 import metroloJ.utilities.tricks.dataTricks;
 import metroloJ.utilities.tricks.fileTricks;
 import metroloJ.utilities.tricks.imageTricks;
+import metroloJ.utilities.tricks.threadTricks;
 
 /**
  * Generates a field illumination homogeneity analysis of an image
@@ -101,34 +104,87 @@ public class fieldIllumination {
     public static final String[] lineHead={"Top-left corner", "Top-right corner", "Bottom-left corner", "Bottom-right corner",
                                            "Upper bound, middle pixel", "Lower bound, middle pixel", "Left bound, middle pixel", "Right bound, middle pixel"};
 
+    /** Version of the algorithm, part of the resultCache key: to be incremented with any change that may modify the cached results **/
+    static final String CACHE_VERSION="1";
+
+    /** Key under which the results are stored in the resultCache, null if the cache is not to be used **/
+    String cacheKey=null;
+
 
     /**
      * Starts the processs of creating a fieldIllumination object on the current image
      */
     public fieldIllumination(){
-        ip=WindowManager.getCurrentImage();
-        if (ip==null){
+        this(false);
+    }
+
+    /**
+     * Starts the processs of creating a fieldIllumination object on the current image, possibly retrieving the results from the resultCache
+     * @param useCache true to use the resultCache (if enabled)
+     */
+    public fieldIllumination(boolean useCache){
+        ImagePlus img=WindowManager.getCurrentImage();
+        if (img==null){
            IJ.error("Please, open an image first...");
            return;
         }
+        analyse(img, useCache);
+    }
+
+    /**
+     * Creates a fieldIllumination object on the provided image, using its calibration. Neither the window state nor the image
+     * (calibration, ROI) are used or modified, so that several images may be analysed in parallel, on worker threads or headless
+     * @param ip ImagePlus on which to work (2D, 8- or 16-bits)
+     */
+    public fieldIllumination(ImagePlus ip){
+        this(ip, false);
+    }
 
+    /**
+     * Creates a fieldIllumination object on the provided image, using its calibration, possibly retrieving the results from the resultCache.
+     * Neither the window state nor the image (calibration, ROI) are used or modified, so that several images may be analysed in parallel
+     * @param ip ImagePlus on which to work (2D, 8- or 16-bits)
+     * @param useCache true to use the resultCache (if enabled)
+     */
+    public fieldIllumination(ImagePlus ip, boolean useCache){
+        if (ip==null) throw new IllegalArgumentException("fieldIllumination requieres an image");
+        if (ip.getBitDepth()!=8 && ip.getBitDepth()!=16) throw new IllegalArgumentException("fieldIllumination expects a 8- or 16-bits image");
+        analyse(ip, useCache);
+    }
+
+    /**
+     * Performs the analysis: centre of intensity, intensity profiles and intensities at the remarkable points
+     * @param img ImagePlus on which to work
+     * @param useCache true to use the resultCache (if enabled)
+     */
+    private void analyse(ImagePlus img, boolean useCache){
+        ip=img;
         w=ip.getWidth();
         h=ip.getHeight();
         cal=ip.getCalibration();
 
+        if (useCache && resultCache.isEnabled()){
+            cacheKey=resultCache.getKey("fieldIllumination", CACHE_VERSION, "", ip);
+            cachedResults cached=resultCache.get(cacheKey, cachedResults.class, fieldIlluminationArray.class);
+            if (cached!=null){
+                cached.restore(this);
+                distInt=dataTricks.dist(new double[]{xCent, yCent}, new double[]{w/2, h/2}, cal);
+                return;
+            }
+        }
 
-        ip.setCalibration(null);
-        ImageStatistics is=ip.getStatistics(ImageStatistics.CENTER_OF_MASS);
+        //Statistics are computed on a duplicate of the processor: uncalibrated, full image, whatever the image's ROI
+        ImageProcessor iproc=ip.getProcessor().duplicate();
+        ImageStatistics is=ImageStatistics.getStatistics(iproc, ImageStatistics.CENTER_OF_MASS, null);
         xCent=is.xCenterOfMass;
         yCent=is.yCenterOfMass;
-        ip.setCalibration(cal);
 
         distInt=dataTricks.dist(new double[]{xCent, yCent}, new double[]{w/2, h/2}, cal);
         
-        diag_TL_BR=getProfile(ip, new Line(0, 0, w-1, h-1));
-        diag_TR_BL=getProfile(ip, new Line(w-1, 0, 0, h-1));
-        horiz=getProfile(ip, new Line(0, h/2-1, w-1, h/2-1));
-        vert=getProfile(ip, new Line(w/2-1, 0, w/2-1, h-1));
+        diag_TL_BR=getProfile(iproc, 0, 0, w-1, h-1);
+        diag_TR_BL=getProfile(iproc, w-1, 0, 0, h-1);
+        horiz=getProfile(iproc, 0, h/2-1, w-1, h/2-1);
+        vert=getProfile(iproc, w/2-1, 0, w/2-1, h-1);
 
 
         int[][] coords={{0,0}, {w-1, 0}, {h-1, 0}, {h-1, w-1}, {w/2, 0}, {w/2, h-1}, {0, h/2}, {w-1, h/2}};
@@ -138,9 +194,91 @@ public class fieldIllumination {
             fia=new fieldIlluminationArray();
             fia.name=lineHead[i];
             fia.coord=coords[i];
-            fia.intensity=ip.getPixel(coords[i][0], coords[i][1])[0];
+            fia.intensity=iproc.getPixel(coords[i][0], coords[i][1]);
             remarkInt.add(fia);
         }
+
+        if (cacheKey!=null) resultCache.put(cacheKey, new cachedResults(this));
+    }
+
+    /**
+     * Analyses a batch of images (e.g. the tiles of a plate scan) in parallel, using the shared pool
+     * @param images the images to analyse (2D, 8- or 16-bits)
+     * @return the fieldIllumination objects, in the same order as the images
+     */
+    public static fieldIllumination[] analyse(ImagePlus[] images){
+        fieldIllumination[] out=new fieldIllumination[images.length];
+        threadTricks.getPool().invoke(new analyseTask(images, out, 0, images.length));
+        return out;
+    }
+
+    /**
+     * Analyses a range of images, splitting the work in halves until a single image is left
+     */
+    private static class analyseTask extends RecursiveAction {
+        private static final long serialVersionUID=1L;
+
+        ImagePlus[] images;
+        fieldIllumination[] out;
+        int start, end;
+
+        analyseTask(ImagePlus[] images, fieldIllumination[] out, int start, int end){
+            this.images=images;
+            this.out=out;
+            this.start=start;
+            this.end=end;
+        }
+
+        @Override
+        protected void compute(){
+            if (end-start<=1){
+                if (end>start) out[start]=new fieldIllumination(images[start]);
+            }else{
+                int middle=(start+end)/2;
+                invokeAll(new analyseTask(images, out, start, middle), new analyseTask(images, out, middle, end));
+            }
+        }
+    }
+
+    /**
+     * Stores the pixel-derived results of a fieldIllumination, to be saved in/retrieved from the resultCache
+     */
+    static class cachedResults implements Serializable {
+        private static final long serialVersionUID=1L;
+
+        double xCent, yCent;
+        double[][] diag_TL_BR, diag_TR_BL, horiz, vert;
+        Vector<fieldIlluminationArray> remarkInt;
+
+        cachedResults(fieldIllumination fi){
+            xCent=fi.xCent;
+            yCent=fi.yCent;
+            diag_TL_BR=fi.diag_TL_BR;
+            diag_TR_BL=fi.diag_TR_BL;
+            horiz=fi.horiz;
+            vert=fi.vert;
+            remarkInt=fi.remarkInt;
+        }
+
+        void restore(fieldIllumination fi){
+            fi.xCent=xCent;
+            fi.yCent=yCent;
+            fi.diag_TL_BR=diag_TL_BR;
+            fi.diag_TR_BL=diag_TR_BL;
+            fi.horiz=horiz;
+            fi.vert=vert;
+            fi.remarkInt=remarkInt;
+        }
+    }
+
+    /**
+     * Stores the isointensity image and its pixel-derived results, to be saved in/retrieved from the resultCache
+     */
+    static class cachedPattern implements Serializable {
+        private static final long serialVersionUID=1L;
+
+        byte[] pixels;
+        double max, xMax, yMax, xCent100, yCent100;
     }
 
 
@@ -151,26 +289,29 @@ public class fieldIllumination {
      * @return the isointensity image as an ImagePlus
      */
     public ImagePlus getPattern(int stepWidth, int barWidth){
-        ImageProcessor iproc= NewImage.createImage("", w, h, 1, 8, NewImage.FILL_BLACK).getProcessor();
-        
-        double max=ip.getStatistics(ImageStatistics.MIN_MAX).max;
-        for (int y=0; y<h; y++){
-            for (int x=0; x<w; x++){
-                int currInt=ip.getPixel(x, y)[0];
-                if (currInt==max){xMax=x; yMax=y;}
-                iproc.set(x, y,  (int) ((int)((currInt/max)*100/stepWidth)*stepWidth));
-            }
+        String patternKey=null;
+        cachedPattern pattern=null;
+        if (cacheKey!=null){
+            patternKey=cacheKey+"_pattern_"+stepWidth+"_"+barWidth;
+            pattern=resultCache.get(patternKey, cachedPattern.class);
         }
 
-        distMax=dataTricks.dist(new double[]{xMax, yMax}, new double[]{w/2, h/2}, cal);
+        ImageProcessor iproc;
+        if (pattern==null){
+            pattern=new cachedPattern();
+            iproc=drawPattern(stepWidth, barWidth, pattern);
+            if (patternKey!=null) resultCache.put(patternKey, pattern);
+        }else{
+            iproc=new ByteProcessor(w, h, pattern.pixels.clone(), null);
+        }
 
-        iproc.setThreshold(100, 100, ImageProcessor.NO_LUT_UPDATE);
-        ImagePlus out=new ImagePlus("Pattern from "+ip.getTitle(), iproc);
-        ImageStatistics is=out.getStatistics(ImageStatistics.CENTROID+ImageStatistics.LIMIT);
-        iproc.resetThreshold();
-        xCent100=is.xCentroid;
-        yCent100=is.yCentroid;
+        double max=pattern.max;
+        xMax=pattern.xMax;
+        yMax=pattern.yMax;
+        xCent100=pattern.xCent100;
+        yCent100=pattern.yCent100;
 
+        distMax=dataTricks.dist(new double[]{xMax, yMax}, new double[]{w/2, h/2}, cal);
         dist100=dataTricks.dist(new double[]{xCent100, yCent100}, new double[]{w/2, h/2}, cal);
 
         fieldIlluminationArray fia=new fieldIlluminationArray();
@@ -181,7 +322,39 @@ public class fieldIllumination {
 
 
         for (int i=0; i<remarkInt.size(); i++) remarkInt.elementAt(i).relativeInt=remarkInt.elementAt(i).intensity/max;
+
+        imageTricks.applyFire(iproc);
+
+        return new ImagePlus("Pattern from "+ip.getTitle(), iproc);
+    }
+
+    /**
+     * Draws the isointensity bands, their labels and the scale bar
+     * @param stepWidth intensity interval between two isointensity bands
+     * @param barWidth width of the scale bar in microns
+     * @param pattern where to store the pattern's pixels, the maximum intensity, its location and the centre of the 100% zone
+     * @return the isointensity image as an ImageProcessor, with no LUT applied
+     */
+    private ImageProcessor drawPattern(int stepWidth, int barWidth, cachedPattern pattern){
+        ImageProcessor iproc= NewImage.createImage("", w, h, 1, 8, NewImage.FILL_BLACK).getProcessor();
         
+        double max=ip.getStatistics(ImageStatistics.MIN_MAX).max;
+        for (int y=0; y<h; y++){
+            for (int x=0; x<w; x++){
+                int currInt=ip.getPixel(x, y)[0];
+                if (currInt==max){pattern.xMax=x; pattern.yMax=y;}
+                iproc.set(x, y,  (int) ((int)((currInt/max)*100/stepWidth)*stepWidth));
+            }
+        }
+        pattern.max=max;
+
+        iproc.setThreshold(100, 100, ImageProcessor.NO_LUT_UPDATE);
+        ImagePlus out=new ImagePlus("Pattern from "+ip.getTitle(), iproc);
+        ImageStatistics is=out.getStatistics(ImageStatistics.CENTROID+ImageStatistics.LIMIT);
+        iproc.resetThreshold();
+        pattern.xCent100=is.xCentroid;
+        pattern.yCent100=is.yCentroid;
+
         iproc.setFont(new Font(Font.SANS_SERIF, Font.BOLD, w/35));
         iproc.setColor(Color.white);
 
@@ -204,9 +377,8 @@ public class fieldIllumination {
             }
         }
         imageTricks.addScaleBar(iproc, ip.getCalibration(), imageTricks.BOTTOM_LEFT, barWidth);
-        imageTricks.applyFire(iproc);
-
-        return new ImagePlus("Pattern from "+ip.getTitle(), iproc);
+        pattern.pixels=((byte[]) iproc.getPixels()).clone();
+        return iproc;
     }
 
     /**
@@ -322,28 +494,28 @@ public class fieldIllumination {
     }
 
     /**
-     * Retrieves the intensity profile on img along the line. Distances are expressed
+     * Retrieves the intensity profile on iproc along the line. Distances are expressed
      * relative to the image's center
-     * @param img ImagePlus from which to retrieve the profile
-     * @param line line along which the profile should be retrieved
+     * @param iproc ImageProcessor from which to retrieve the profile
+     * @param x1 x coordinate of the line's start
+     * @param y1 y coordinate of the line's start
+     * @param x2 x coordinate of the line's end
+     * @param y2 y coordinate of the line's end
      * @return a 2D double array: out[0: distance, 1: intensities][]
      */
-    private double[][] getProfile(ImagePlus img, Line line){
+    private double[][] getProfile(ImageProcessor iproc, int x1, int y1, int x2, int y2){
         double[][] out=new double[2][];
-        img.setRoi(line);
-        ProfilePlot pp=new ProfilePlot(img);
-        
-        out[1]=pp.getProfile();
+        out[1]=iproc.getLine(x1, y1, x2, y2);
 
-        double length=img.getRoi().getLength();
+        double dx=(x2-x1)*cal.pixelWidth;
+        double dy=(y2-y1)*cal.pixelHeight;
+        double length=Math.sqrt(dx*dx+dy*dy);
         int nPoints=out[1].length;
 
         out[0]=new double[out[1].length];
 
         for (int i=0; i<nPoints; i++) out[0][i]=(i*length/(nPoints-1))-length/2;
 
-        img.killRoi();
-
         return out;
     }
 
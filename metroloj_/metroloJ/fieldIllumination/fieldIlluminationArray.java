@@ -23,7 +23,11 @@
 
 package metroloJ.fieldIllumination;
 
-public class fieldIlluminationArray {
+import java.io.Serializable;
+
+public class fieldIlluminationArray implements Serializable {
+    private static final long serialVersionUID=1L;
+
     public String name;
     public int[] coord;
     public int intensity;
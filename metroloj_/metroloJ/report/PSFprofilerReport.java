@@ -65,7 +65,7 @@ public class PSFprofilerReport {
     public PSFprofilerReport(metroloJDialog mjd){
         this.mjd=mjd;
         microscope=mjd.getMicroscope();
-        pp=new PSFprofiler(mjd.ip);
+        pp=new PSFprofiler(mjd.ip, new PSFsettings(), true);
         svg=new sideViewGenerator();
     }
 
@@ -63,8 +63,19 @@ public class coAlignementReport {
      * @param title title to be used on the report
      */
     public coAlignementReport(ImagePlus[] ip, microscope[] conditions, String title){
+        this(ip, conditions, title, coAlignement.PROJECTION_CENTRE);
+    }
+
+    /**
+     * Starts the process of analysing co-alignement and creating a report
+     * @param ip ImagePlus to analyse
+     * @param conditions microscope conditions (usufull to store the wavelengths)
+     * @param title title to be used on the report
+     * @param centreMethod method used to retrieve the centres: coAlignement.PROJECTION_CENTRE or coAlignement.SUBPIXEL_CENTRE
+     */
+    public coAlignementReport(ImagePlus[] ip, microscope[] conditions, String title, int centreMethod){
         micro=conditions;
-        coa=new coAlignement(ip, conditions);
+        coa=new coAlignement(ip, conditions, true, centreMethod);
         svg=new sideViewGenerator();
         this.title=micro[0].date+"\n"+"Co-Alignement report";
         if (!title.equals("")) this.title+="\n"+title;
@@ -66,7 +66,7 @@ public class fieldIlluminationReport {
      * @param stepWidth width of the steps on the isointensity image
      */
     public fieldIlluminationReport(metroloJDialog mjd, int stepWidth){
-        fi=new fieldIllumination();
+        fi=new fieldIllumination(true);
         this.mjd=mjd;
         this.stepWidth=stepWidth;
         microscope=mjd.getMicroscope(fi.cal);
@@ -65,7 +65,7 @@ public class zProfilerReport {
     public zProfilerReport(metroloJDialog mjd){
         this.mjd=mjd;
         microscope=mjd.getMicroscope();
-        zProf=new zProfiler(mjd.ip, mjd.ip.getRoi());
+        zProf=new zProfiler(mjd.ip, mjd.ip.getRoi(), true);
         title=microscope.date+"\n"+"Axial resolution report on "+mjd.ip.getTitle();
     }
     /**
@@ -0,0 +1,319 @@
+/**
+ *
+ *  PSFbatchProfiler v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package metroloJ.resolution;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import metroloJ.setup.microscope;
+import metroloJ.utilities.findMax;
+import metroloJ.utilities.tricks.dataTricks;
+import metroloJ.utilities.tricks.threadTricks;
+
+/**
+ * PSFbatchProfiler detects all beads within a full-field stack, crops a sub-volume around each of them
+ * and runs a PSFprofiler on each sub-volume, in parallel. Per bead results as well as aggregate statistics are made available.
+ * @author agent
+ */
+public class PSFbatchProfiler {
+
+    /** Reference to the x dimension **/
+    public static final int X=0;
+
+    /** Reference to the y dimension **/
+    public static final int Y=1;
+
+    /** Reference to the z dimension **/
+    public static final int Z=2;
+
+    /** ImagePlus on which PSFbatchProfiler is built **/
+    ImagePlus ip;
+
+    /** Stores the calibration of the ImagePlus from which the PSFbatchProfiler is built**/
+    Calibration cal=new Calibration();
+
+    /** Half-width, in pixels, of the sub-volumes cropped around each bead, in xy **/
+    int radius;
+
+    /** Half-depth, in slices, of the sub-volumes cropped around each bead **/
+    int zRadius;
+
+    /** Stores the results, one per bead found **/
+    PSFbead[] beads;
+
+    /** Stores the analysis parameters used on each bead **/
+    PSFsettings settings=new PSFsettings();
+
+    /**
+     * Builds a new PSFbatchProfiler object
+     * @param ip ImagePlus on which the PSFbatchProfiler object is built
+     * @param threshold minimum intensity for a bead to be analysed. If NaN, the threshold is set automatically (see findMax.getAllMaxima)
+     * @param radius half-width, in pixels, of the sub-volumes cropped around each bead. Beads closer than radius from the image's borders are discarded.
+     * Within radius of each other (along x or y), only the brightest maximum is kept: a dimmer neighbour is not analysed but remains within
+     * the brightest bead's crop, where it may bias the fit. Beads should therefore be sparse enough for crops not to overlap
+     * @param zRadius half-depth, in slices, of the sub-volumes cropped around each bead
+     * @param settings analysis parameters to be used on each bead
+     */
+    public PSFbatchProfiler(ImagePlus ip, double threshold, int radius, int zRadius, PSFsettings settings){
+        if (ip.getNSlices()==1) throw new IllegalArgumentException("PSFbatchProfiler requieres a stack");
+        if (radius<1 || zRadius<1) throw new IllegalArgumentException("PSFbatchProfiler requieres the cropping radii to be at least 1");
+        settings.check();
+
+        this.ip=ip;
+        this.settings=settings.copy();
+        this.radius=radius;
+        this.zRadius=zRadius;
+        cal=ip.getCalibration();
+
+        int[][] maxima=new findMax().getAllMaxima(ip, threshold, radius, true);
+        beads=new PSFbead[maxima.length];
+        for (int i=0; i<maxima.length; i++){
+            beads[i]=new PSFbead();
+            beads[i].coord=maxima[i];
+            beads[i].origin=new int[]{maxima[i][0]-radius, maxima[i][1]-radius, Math.max(1, maxima[i][2]-zRadius)};
+        }
+
+        threadTricks.getPool().invoke(new fitTask(0, beads.length));
+    }
+
+    /**
+     * Builds a new PSFbatchProfiler object, using the default analysis parameters
+     * @param ip ImagePlus on which the PSFbatchProfiler object is built
+     * @param threshold minimum intensity for a bead to be analysed. If NaN, the threshold is set automatically (see findMax.getAllMaxima)
+     * @param radius half-width, in pixels, of the sub-volumes cropped around each bead
+     * @param zRadius half-depth, in slices, of the sub-volumes cropped around each bead
+     */
+    public PSFbatchProfiler(ImagePlus ip, double threshold, int radius, int zRadius){
+        this(ip, threshold, radius, zRadius, new PSFsettings());
+    }
+
+    /**
+     * Builds a new PSFbatchProfiler object, the detection threshold being set automatically
+     * @param ip ImagePlus on which the PSFbatchProfiler object is built
+     * @param radius half-width, in pixels, of the sub-volumes cropped around each bead
+     * @param zRadius half-depth, in slices, of the sub-volumes cropped around each bead
+     */
+    public PSFbatchProfiler(ImagePlus ip, int radius, int zRadius){
+        this(ip, Double.NaN, radius, zRadius);
+    }
+
+    /**
+     * Crops the sub-volume around the bead and runs the PSFprofiler on it
+     * @param bead the bead to analyse
+     */
+    private void analyseBead(PSFbead bead){
+        ImageStack is=ip.getStack();
+        int w=ip.getWidth();
+        int size=2*radius+1;
+        int zEnd=Math.min(is.getSize(), bead.coord[2]+zRadius);
+
+        ImageStack crop=new ImageStack(size, size);
+        for (int z=bead.origin[2]; z<=zEnd; z++){
+            Object pixels=is.getPixels(z);
+            Object cropPixels=Array.newInstance(pixels.getClass().getComponentType(), size*size);
+            for (int y=0; y<size; y++) System.arraycopy(pixels, (bead.origin[1]+y)*w+bead.origin[0], cropPixels, y*size, size);
+            crop.addSlice("", cropPixels);
+        }
+        if (crop.getSize()<2) return;
+
+        ImagePlus cropIp=new ImagePlus("Bead at ("+bead.coord[0]+", "+bead.coord[1]+", "+bead.coord[2]+")", crop);
+        cropIp.setCalibration(cal.copy());
+
+        try{
+            bead.profiler=new PSFprofiler(cropIp, settings);
+            bead.resol=bead.profiler.getResolutions().clone();
+            bead.R2=bead.profiler.getFitGoodness();
+            double[] position=bead.profiler.getPosition();
+            for (int i=0; i<3; i++) bead.position[i]=bead.origin[i]+position[i]-(i==Z?1:0);
+        }catch (RuntimeException ex){
+            bead.profiler=null;
+            Logger.getLogger(PSFbatchProfiler.class.getName()).log(Level.WARNING, "PSF analysis failed for "+cropIp.getTitle(), ex);
+        }
+    }
+
+    /**
+     * Analyses a range of beads, splitting the work in halves until a single bead is left
+     */
+    private class fitTask extends RecursiveAction {
+        private static final long serialVersionUID=1L;
+
+        int start, end;
+
+        fitTask(int start, int end){
+            this.start=start;
+            this.end=end;
+        }
+
+        @Override
+        protected void compute(){
+            if (end-start<=1){
+                if (end>start) analyseBead(beads[start]);
+            }else{
+                int middle=(start+end)/2;
+                invokeAll(new fitTask(start, middle), new fitTask(middle, end));
+            }
+        }
+    }
+
+    /**
+     * Returns the results of all beads found
+     * @return an array of PSFbead objects
+     */
+    public PSFbead[] getBeads(){
+        return beads;
+    }
+
+    /**
+     * Returns the number of beads found
+     * @return the number of beads as an integer
+     */
+    public int getNBeads(){
+        return beads.length;
+    }
+
+    /**
+     * Returns the resolutions (FWHM) obtained for all successfully analysed beads, along a single dimension, sorted in ascending order
+     * @param dimension 0 for x, 1 for y and 2 for z
+     * @return a sorted double array
+     */
+    public double[] getResolutions(int dimension){
+        double[] tmp=new double[beads.length];
+        int n=0;
+        for (int i=0; i<beads.length; i++){
+            double value=beads[i].resol[dimension];
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) tmp[n++]=value;
+        }
+        double[] out=Arrays.copyOf(tmp, n);
+        Arrays.sort(out);
+        return out;
+    }
+
+    /**
+     * Returns the median resolution (FWHM) along a single dimension
+     * @param dimension 0 for x, 1 for y and 2 for z
+     * @return the median as a double, NaN if no bead was successfully analysed
+     */
+    public double getMedian(int dimension){
+        return quantile(getResolutions(dimension), 0.5);
+    }
+
+    /**
+     * Returns the interquartile range of the resolutions (FWHM) along a single dimension
+     * @param dimension 0 for x, 1 for y and 2 for z
+     * @return the interquartile range as a double, NaN if no bead was successfully analysed
+     */
+    public double getIQR(int dimension){
+        double[] values=getResolutions(dimension);
+        return quantile(values, 0.75)-quantile(values, 0.25);
+    }
+
+    /**
+     * Calculates a quantile from a sorted array, using linear interpolation between the closest ranks
+     * @param sorted the input array, sorted in ascending order
+     * @param q the quantile to calculate, between 0 and 1
+     * @return the quantile as a double
+     */
+    private double quantile(double[] sorted, double q){
+        if (sorted.length==0) return Double.NaN;
+        double pos=q*(sorted.length-1);
+        int low=(int) Math.floor(pos);
+        int high=Math.min(sorted.length-1, low+1);
+        return sorted[low]+(pos-low)*(sorted[high]-sorted[low]);
+    }
+
+    /**
+     * Returns the unit of length used for the resolutions
+     * @return a String containing the unit of length
+     */
+    public String getUnit(){
+        return cal.getUnit();
+    }
+
+    /**
+     * Generates a array of string containing both the median/IQR of the calculated resolutions from the image and the theoretical resolutions, based on the input microscope setup.
+     * @param microscope describes the microscope used
+     * @return an array of strings
+     */
+    public String[][] getSummary(microscope microscope){
+        String[][] output={{"", "x", "y", "z"},
+        {"FWHM (median)", dataTricks.round(getMedian(X), 3)+" "+getUnit(), dataTricks.round(getMedian(Y), 3)+" "+getUnit(), dataTricks.round(getMedian(Z), 3)+" "+getUnit()},
+        {"FWHM (IQR)", dataTricks.round(getIQR(X), 3)+" "+getUnit(), dataTricks.round(getIQR(Y), 3)+" "+getUnit(), dataTricks.round(getIQR(Z), 3)+" "+getUnit()},
+        {"Nb of beads", getResolutions(X).length+"", getResolutions(Y).length+"", getResolutions(Z).length+""},
+        {"Theoretical resolution", dataTricks.round(microscope.resolution[0], 3)+" µm", dataTricks.round(microscope.resolution[1], 3)+" µm", dataTricks.round(microscope.resolution[2], 3)+" µm"}};
+        return output;
+    }
+
+    /**
+     * Saves the per bead results as a tab-delimited file
+     * @param path directory were to save
+     * @param filename name of the file (without the extension)
+     */
+    public void saveBeads(String path, String filename){
+        BufferedWriter out = null;
+        try {
+            out = new BufferedWriter(new FileWriter(path + filename + "_beads.xls"));
+            out.write("x (pixel)\ty (pixel)\tz (slice)\tRefined x (pixel)\tRefined y (pixel)\tRefined z (slice)\tFWHM x ("+getUnit()+")\tFWHM y ("+getUnit()+")\tFWHM z ("+getUnit()+")\tFit goodness x\tFit goodness y\tFit goodness z");
+            out.newLine();
+            for (int i=0; i<beads.length; i++){
+                out.write(beads[i].toString());
+                out.newLine();
+            }
+            out.close();
+        } catch (IOException ex) {
+            Logger.getLogger(PSFbatchProfiler.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Saves the summary array as a tab-delimited file
+     * @param path directory were to save
+     * @param filename name of the file (without the extension)
+     */
+    public void saveSummary(String path, String filename, microscope microscope){
+        BufferedWriter out = null;
+        try {
+            out = new BufferedWriter(new FileWriter(path + filename + "_summary.xls"));
+            String[][] array=getSummary(microscope);
+            for (int j=0; j<array[0].length; j++){
+                String line="";
+                for (int i=0; i<array.length; i++){
+                    line+=array[i][j].replaceAll("\n", " ")+"\t";
+                }
+                out.write(line);
+                out.newLine();
+            }
+            out.close();
+        } catch (IOException ex) {
+            Logger.getLogger(PSFbatchProfiler.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ *
+ *  PSFbead v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package metroloJ.resolution;
+
+/**
+ * PSFbead stores the results of the analysis of a single bead, as found by PSFbatchProfiler.
+ * @author agent
+ */
+public class PSFbead {
+    /** Uncalibrated coordinates of the bead within the full image (x, y and z, z being a slice number starting from 1) **/
+    public int[] coord;
+
+    /** Uncalibrated coordinates of the bead within the full image, refined to sub-pixel precision if requested (x, y and z, z being a slice number starting from 1) **/
+    public double[] position={Double.NaN, Double.NaN, Double.NaN};
+
+    /** Uncalibrated coordinates of the upper-left-top corner of the cropped sub-volume, within the full image **/
+    public int[] origin;
+
+    /** Calculated resolutions (FWHM) along x, y and z **/
+    public double[] resol={Double.NaN, Double.NaN, Double.NaN};
+
+    /** Goodness of the x, y and z fits **/
+    public double[] R2={Double.NaN, Double.NaN, Double.NaN};
+
+    /** PSFprofiler built on the cropped sub-volume, null if the analysis failed **/
+    public PSFprofiler profiler=null;
+
+    @Override
+    public String toString(){
+        return coord[0]+"\t"+coord[1]+"\t"+coord[2]+"\t"+position[0]+"\t"+position[1]+"\t"+position[2]+"\t"+resol[0]+"\t"+resol[1]+"\t"+resol[2]+"\t"+R2[0]+"\t"+R2[1]+"\t"+R2[2];
+    }
+}
@@ -27,19 +27,23 @@ import ij.ImagePlus;
 import ij.gui.*;
 import ij.io.FileSaver;
 import ij.measure.*;
-import ij.plugin.Slicer;
 import java.awt.Color;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import metroloJ.setup.microscope;
 import metroloJ.utilities.findMax;
+import metroloJ.utilities.resultCache;
 import metroloJ.utilities.tricks.dataTricks;
+import metroloJ.utilities.tricks.stackTricks;
 
 /**
  * PSFprofiler allows to retrieve from either a 2D or 3D image x, y and z intensity profiles and calculate the corresponding resolutions.
+ * Each profile, its fit and its plot are only computed when first requested, then kept: callers only interested in the lateral resolution
+ * never pay for the z profile.
  * @author Fabrice Cordelières
  */
 
@@ -62,6 +66,9 @@ public class PSFprofiler {
 
     /** Stores the coordinates of the center **/
     int[] center;
+
+    /** Stores the coordinates of the center, refined to sub-pixel precision if requested, through which the profiles are taken **/
+    double[] position;
     
     /** Stores the x profile, [0=x as a physical distance ,1=raw intensity, 2=fitted data][pixel nb, from 0 to width-1]**/
     double[][] xProfile=null;
@@ -105,22 +112,77 @@ public class PSFprofiler {
     /** Stores the calculated resolutions (FWHM) in all the dimensions of the image **/
     double[] resol={0, 0, 0};
 
+    /** Stores the plots, once generated, along x, y and z **/
+    Plot[] plots=new Plot[3];
+
+    /** Gaussian fitter, reused for all profiles **/
+    gaussianFitter fitter=new gaussianFitter();
+
+    /** Stores the analysis parameters **/
+    PSFsettings settings=new PSFsettings();
+
+    /** Stores the background estimated from the annulus surrounding the bead, NaN when the background is fitted **/
+    double background=Double.NaN;
+
+    /** Version of the algorithm, part of the resultCache key: to be incremented with any change that may modify the cached results **/
+    static final String CACHE_VERSION="2";
+
+    /** Key under which the results are stored in the resultCache, null if the cache is not to be used **/
+    String cacheKey=null;
+
     /**
-     * Builds a new PSFprofiler object
+     * Builds a new PSFprofiler object, using the default analysis parameters
      * @param ip ImagePlus on which the PSFprofiler object is built
      */
     public PSFprofiler(ImagePlus ip){
+        this(ip, new PSFsettings());
+    }
+
+    /**
+     * Builds a new PSFprofiler object. The ImagePlus is only read: neither its current slice, ROI nor calibration are modified.
+     * Profiles are read straight from the stack, slice after slice: hyperstacks should be split into single channel, single time point stacks first.
+     * Only the maximum is searched for at this stage, profiles being retrieved and fitted on first request.
+     * @param ip ImagePlus on which the PSFprofiler object is built
+     * @param settings analysis parameters
+     */
+    public PSFprofiler(ImagePlus ip, PSFsettings settings){
+        this(ip, settings, false);
+    }
+
+    /**
+     * Builds a new PSFprofiler object, possibly retrieving the results from the resultCache.
+     * When results are found for the same pixel data, calibration and settings, the image is not read at all.
+     * Otherwise, the results are stored in the cache once the three profiles have been fitted.
+     * @param ip ImagePlus on which the PSFprofiler object is built
+     * @param settings analysis parameters
+     * @param useCache true to use the resultCache (if enabled)
+     */
+    public PSFprofiler(ImagePlus ip, PSFsettings settings, boolean useCache){
         if (ip.getNSlices()==1) throw new IllegalArgumentException("PSFprofiler requieres a stack");
+        if (ip.getStackSize()!=ip.getNSlices()) throw new IllegalArgumentException("PSFprofiler requieres a single channel, single time point stack");
+
+        settings.check();
 
         this.ip=ip;
+        this.settings=settings.copy();
+        if (useCache && resultCache.isEnabled()){
+            cacheKey=resultCache.getKey("PSFprofiler", CACHE_VERSION, this.settings.toString(), ip);
+            cachedResults cached=resultCache.get(cacheKey, cachedResults.class);
+            if (cached!=null){
+                cal=ip.getCalibration();
+                cached.restore(this);
+                return;
+            }
+        }
+
         center=new findMax().getAllCoordinates(ip);
+        position=new findMax().getSubPixelCoordinates(ip.getStack(), center, settings.subPixelMethod, settings.subPixelRadius);
         cal=ip.getCalibration();
-        ip.setSlice(center[2]);
-
-        getXprofileAndFit();
-        getYprofileAndFit();
-        getZprofileAndFit();
 
+        int innerRadius=Math.max(this.settings.fitRadius[X], this.settings.fitRadius[Y]);
+        if (this.settings.backgroundWidth>0 && innerRadius>0){
+            background=stackTricks.getAnnulusMedian(ip.getStack(), (int) Math.round(position[0]), (int) Math.round(position[1]), (int) Math.round(position[2]), innerRadius, innerRadius+this.settings.backgroundWidth);
+        }
     }
     
     public PSFprofiler(String path){
@@ -128,43 +190,103 @@ public class PSFprofiler {
     }
 
     /**
-     * Retrieves data and fills xProfile the x profile through the centre of the bead retrieved from the current ImageProcessor
+     * Retrieves and fits the profile along the requested dimension, unless already done
+     * @param dimension X, Y or Z
+     */
+    private synchronized void checkProfile(int dimension){
+        switch (dimension){
+            case X: if (xProfile!=null) return; getXprofileAndFit(); break;
+            case Y: if (yProfile!=null) return; getYprofileAndFit(); break;
+            case Z: if (zProfile!=null) return; getZprofileAndFit(); break;
+        }
+        if (cacheKey!=null && xProfile!=null && yProfile!=null && zProfile!=null) resultCache.put(cacheKey, new cachedResults(this));
+    }
+
+    /**
+     * Stores all the pixel-derived results of a PSFprofiler, to be saved in/retrieved from the resultCache
+     */
+    static class cachedResults implements Serializable {
+        private static final long serialVersionUID=1L;
+
+        int[] center;
+        double[] position;
+        double background;
+        double[][][] profiles;
+        double[][] params;
+        double[] R2;
+        String[] paramStrings;
+        double[] resol;
+
+        cachedResults(PSFprofiler pp){
+            center=pp.center;
+            position=pp.position;
+            background=pp.background;
+            profiles=new double[][][]{pp.xProfile, pp.yProfile, pp.zProfile};
+            params=new double[][]{pp.xParams, pp.yParams, pp.zParams};
+            R2=new double[]{pp.xR2, pp.yR2, pp.zR2};
+            paramStrings=new String[]{pp.xParamString, pp.yParamString, pp.zParamString};
+            resol=pp.resol.clone();
+        }
+
+        void restore(PSFprofiler pp){
+            pp.center=center;
+            pp.position=position;
+            pp.background=background;
+            pp.xProfile=profiles[X];
+            pp.yProfile=profiles[Y];
+            pp.zProfile=profiles[Z];
+            pp.xParams=params[X];
+            pp.yParams=params[Y];
+            pp.zParams=params[Z];
+            pp.xR2=R2[X];
+            pp.yR2=R2[Y];
+            pp.zR2=R2[Z];
+            pp.xParamString=paramStrings[X];
+            pp.yParamString=paramStrings[Y];
+            pp.zParamString=paramStrings[Z];
+            pp.resol=resol.clone();
+        }
+    }
+
+    /**
+     * Retrieves data and fills xProfile the x profile through the centre of the bead, interpolated when the centre lies between pixels
      * @return a double[][] [0=x as a physical distance ,1=raw intensity, 2=fitted data][pixel nb, from 0 to width-1]
      */
     private void getXprofileAndFit(){
         xProfile=new double[3][ip.getWidth()];
-        xProfile[1]=ip.getProcessor().getLine(0, center[1], ip.getWidth()-1, center[1]);
-        fitProfile(xProfile, xParams, X);
+        xProfile[1]=stackTricks.getLineProfile(ip.getStack(), true, position[1], position[2]);
+        fitProfile(xProfile, position[0], X);
      }
 
     /**
-     * Retrieves data and fills yProfile the y profile through the centre of the bead retrieved from the current ImageProcessor
+     * Retrieves data and fills yProfile the y profile through the centre of the bead, interpolated when the centre lies between pixels
      * @return a double[][] [0=y as a physical distance ,1=raw intensity, 2=fitted data][pixel nb, from 0 to width-1]
      */
     private void getYprofileAndFit(){
         yProfile=new double[3][ip.getHeight()];
-        yProfile[1]=ip.getProcessor().getLine(center[0], 0, center[0], ip.getHeight()-1);
-        fitProfile(yProfile, yParams, Y);
+        yProfile[1]=stackTricks.getLineProfile(ip.getStack(), false, position[0], position[2]);
+        fitProfile(yProfile, position[1], Y);
     }
 
     /**
-     * Retrieves data and fills zProfile the z profile through the centre of the bead retrieved from the current ImageProcessor
-     * @return a double[][] [0=z as a physical distance ,1=raw intensity, 2=fitted data][pixel nb, from 0 to width-1]
+     * Retrieves data and fills zProfile the z profile through the centre of the bead, read directly from the stack's pixel arrays,
+     * interpolated when the centre lies between pixels (and averaged over a settings.zProfileAvgSize x settings.zProfileAvgSize neighbourhood)
+     * @return a double[][] [0=z as a physical distance ,1=raw intensity, 2=fitted data][pixel nb, from 0 to nSlices-1]
      */
     private void getZprofileAndFit(){
-        ip.setCalibration(new Calibration());
-        ip.setRoi(new Line(0, center[1], ip.getWidth()-1, center[1]));
-        ImagePlus crossX=new Slicer().reslice(ip);
-        ip.killRoi();
-        ip.setCalibration(cal);
-
         zProfile=new double[3][ip.getNSlices()];
-        zProfile[1]=crossX.getProcessor().getLine(center[0], 0, center[0], crossX.getHeight()-1);
-        fitProfile(zProfile, zParams, Z);
+        zProfile[1]=stackTricks.getZprofile(ip.getStack(), position[0], position[1], settings.zProfileAvgSize);
+        fitProfile(zProfile, position[2]-1, Z);
     }
 
-    private void fitProfile(double [][] profile, double[] params, int dimension){
-        double max=profile[1][0];
+    /**
+     * Fits the profile, either as a whole or over a window centred on the bead (see PSFsettings.fitRadius), and fills its fitted data.
+     * When a background has been estimated from the annulus, it is kept fixed during the fit.
+     * @param profile the profile, [0=physical distance ,1=raw intensity, 2=fitted data][pixel nb]
+     * @param centre position of the bead along the profile, in pixels
+     * @param dimension X, Y or Z
+     */
+    private void fitProfile(double [][] profile, double centre, int dimension){
         double pixelSize=1;
         int resolIndex=0;
 
@@ -174,14 +296,25 @@ public class PSFprofiler {
             case Z: pixelSize=cal.pixelDepth; resolIndex=2; break;
         }
 
-        params=new double[4];
+        int start=0;
+        int end=profile[0].length-1;
+        int radius=settings.fitRadius[resolIndex];
+        if (radius>0){
+            int pos=(int) Math.round(centre);
+            start=Math.max(0, Math.min(pos-radius, end+1-gaussianFitter.N_PARAMS));
+            end=Math.min(end, Math.max(pos+radius, start+gaussianFitter.N_PARAMS-1));
+        }
+
+        for (int i=0; i<profile[0].length; i++) profile[0][i]=i*pixelSize;
+
+        double max=profile[1][start];
+        double[] params=new double[4];
         params[0]=max;
         params[1]=max;
-        params[2]=0;
+        params[2]=profile[0][start];
         params[3]=2*pixelSize;
-        
-        for (int i=0; i<profile[0].length; i++){
-            profile[0][i]=i*pixelSize;
+
+        for (int i=start; i<=end; i++){
             double currVal=profile[1][i];
             params[0]=Math.min(params[0], currVal);
             if (currVal>max){
@@ -190,34 +323,37 @@ public class PSFprofiler {
                 max=currVal;
             }
         }
-        CurveFitter cv=new CurveFitter(profile[0], profile[1]);
-        cv.setInitialParameters(params);
-        cv.doFit(CurveFitter.GAUSSIAN);
-        params=cv.getParams();
-        String paramString=cv.getResultString();
-        paramString=paramString.substring(paramString.lastIndexOf("ms")+2);
+        if (!Double.isNaN(background)) params[0]=background;
+
+        fitter.fixBackground=!Double.isNaN(background);
+        gaussianFit fit=fitter.fit(profile[0], profile[1], start, end-start+1, params, new gaussianFit());
+        params=fit.getParams();
+        String paramString=fit.toString();
         
         switch (dimension){
-            case X: xParamString+=paramString; xR2=cv.getFitGoodness(); break;
-            case Y: yParamString+=paramString; yR2=cv.getFitGoodness(); break;
-            case Z: zParamString+=paramString; zR2=cv.getFitGoodness(); break;
+            case X: xParams=params; xParamString+=paramString; xR2=fit.fitGoodness; break;
+            case Y: yParams=params; yParamString+=paramString; yR2=fit.fitGoodness; break;
+            case Z: zParams=params; zParamString+=paramString; zR2=fit.fitGoodness; break;
         }
 
-        for (int i=0; i<profile[0].length; i++) profile[2][i]=CurveFitter.f(CurveFitter.GAUSSIAN, params, profile[0][i]);
-        resol[resolIndex]=2*SQRT2LN2*params[3];
+        for (int i=0; i<profile[0].length; i++) profile[2][i]=fit.f(profile[0][i]);
+        resol[resolIndex]=fit.isValid()?fit.getFWHM():Double.NaN;
     }
 
     /**
      * Returns a plot object based on the x profile of the current ImagePlus
      * @return a plot object
      */
-    public Plot getXplot(){
+    public synchronized Plot getXplot(){
+        if (plots[X]!=null) return plots[X];
+        checkProfile(X);
         Plot plot=new Plot("Profile plot along the x axis", "x ("+cal.getUnit()+")", "Intensity (AU)", xProfile[0], xProfile[2]);
         plot.setSize(300, 200);
         plot.setColor(Color.red);
         plot.addPoints(xProfile[0], xProfile[1], Plot.CIRCLE);
         plot.setColor(Color.black);
         plot.addLabel(0.6, 0.13, "Dots: measured\nLine: fitted");
+        plots[X]=plot;
         return plot;
     }
 
@@ -225,13 +361,16 @@ public class PSFprofiler {
      * Returns a plot object based on the y profile of the current ImagePlus
      * @return a plot object
      */
-    public Plot getYplot(){
+    public synchronized Plot getYplot(){
+        if (plots[Y]!=null) return plots[Y];
+        checkProfile(Y);
         Plot plot=new Plot("Profile plot along the y axis", "y ("+cal.getUnit()+")", "Intensity (AU)", yProfile[0], yProfile[2]);
         plot.setSize(300, 200);
         plot.setColor(Color.red);
         plot.addPoints(yProfile[0], yProfile[1], Plot.CIRCLE);
         plot.setColor(Color.black);
         plot.addLabel(0.6, 0.13, "Dots: measured\nLine: fitted");
+        plots[Y]=plot;
         return plot;
     }
 
@@ -239,24 +378,81 @@ public class PSFprofiler {
      * Returns a plot object based on the z profile of the current ImagePlus
      * @return a plot object
      */
-    public Plot getZplot(){
+    public synchronized Plot getZplot(){
+        if (plots[Z]!=null) return plots[Z];
+        checkProfile(Z);
         Plot plot=new Plot("Profile plot along the z axis", "z ("+cal.getUnit()+")", "Intensity (AU)", zProfile[0], zProfile[2]);
         plot.setSize(300, 200);
         plot.setColor(Color.red);
         plot.addPoints(zProfile[0], zProfile[1], Plot.CIRCLE);
         plot.setColor(Color.black);
         plot.addLabel(0.6, 0.13, "Dots: measured\nLine: fitted");
+        plots[Z]=plot;
         return plot;
     }
 
     /**
      * Returns the calculated resolutions in all available dimensions, i.e. FWHM after fitting the 2 or 3 profiles
-     * @return the x, y and z (if applicable) resolutions as a double array of size 2 (or 3).
+     * @return the x, y and z (if applicable) resolutions as a double array of size 2 (or 3), NaN along dimensions where the fit failed (see gaussianFit.isValid).
      */
     public double[] getResolutions(){
+        checkProfile(X);
+        checkProfile(Y);
+        checkProfile(Z);
         return resol;
     }
 
+    /**
+     * Returns the calculated resolution along a single dimension, only the corresponding profile being retrieved and fitted
+     * @param dimension X, Y or Z
+     * @return the resolution (FWHM) as a double, NaN if the fit failed
+     */
+    public double getResolution(int dimension){
+        checkProfile(dimension);
+        return resol[dimension];
+    }
+
+    /**
+     * Returns the goodness of the x, y and z fits
+     * @return the x, y and z fit goodness as a double array of size 3.
+     */
+    public double[] getFitGoodness(){
+        checkProfile(X);
+        checkProfile(Y);
+        checkProfile(Z);
+        return new double[]{xR2, yR2, zR2};
+    }
+
+    /**
+     * Returns the goodness of the fit along a single dimension, only the corresponding profile being retrieved and fitted
+     * @param dimension X, Y or Z
+     * @return the fit goodness as a double
+     */
+    public double getFitGoodness(int dimension){
+        checkProfile(dimension);
+        switch (dimension){
+            case X: return xR2;
+            case Y: return yR2;
+            default: return zR2;
+        }
+    }
+
+    /**
+     * Returns the coordinates of the maximum of intensity through which the profiles have been taken
+     * @return the uncalibrated x, y and z coordinates as an integer array
+     */
+    public int[] getCenter(){
+        return center;
+    }
+
+    /**
+     * Returns the coordinates through which the profiles have been taken, refined to sub-pixel precision if requested in the settings
+     * @return the uncalibrated x, y and z (slice number, starting from 1) coordinates as a double array
+     */
+    public double[] getPosition(){
+        return position;
+    }
+
     /**
      * Returns the unit of length used for the resolutions
      * @return a String containing the unit of length
@@ -266,14 +462,17 @@ public class PSFprofiler {
     }
 
     public String getXParams(){
+        checkProfile(X);
         return xParamString;
     }
 
     public String getYParams(){
+        checkProfile(Y);
         return yParamString;
     }
 
     public String getZParams(){
+        checkProfile(Z);
         return zParamString;
     }
 
@@ -283,6 +482,7 @@ public class PSFprofiler {
      * @param filename the final file will have for name filename_x-profile.xls
      */
     public void saveProfiles(String path, String filename){
+        getResolutions();
         saveProfile(path, filename+"_x-profile", xProfile);
         saveProfile(path, filename+"_y-profile", yProfile);
         saveProfile(path, filename+"_z-profile", zProfile);
@@ -0,0 +1,95 @@
+/**
+ *
+ *  PSFsettings v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package metroloJ.resolution;
+
+import ij.measure.Calibration;
+import java.util.Arrays;
+import metroloJ.setup.microscope;
+import metroloJ.utilities.findMax;
+
+/**
+ * PSFsettings stores the analysis parameters used by PSFprofiler. The default values reproduce the original behaviour.
+ * @author agent
+ */
+public class PSFsettings {
+    /** Size of the xy neighbourhood over which the z profile is averaged (1: no averaging) **/
+    public int zProfileAvgSize=1;
+
+    /** Method used to refine the position of the bead to sub-pixel precision (see findMax.NONE, CENTROID, PARABOLIC and GAUSSIAN) **/
+    public int subPixelMethod=findMax.NONE;
+
+    /** Half-size, in pixels, of the window used for sub-pixel refinement by the centroid method **/
+    public int subPixelRadius=2;
+
+    /** Half-width of the window over which each profile is fitted, in pixels along x and y, in slices along z (0: the whole profile is fitted) **/
+    public int[] fitRadius={0, 0, 0};
+
+    /** Width, in pixels, of the annulus surrounding the xy fitting window, on the bead's slice, from which the background is estimated and then kept fixed during the fits (0: the background is fitted). Requieres fitRadius to be set along x or y, the annulus starting at the edge of the xy fitting window **/
+    public int backgroundWidth=0;
+
+    /**
+     * Creates a new PSFsettings object, carrying the default values
+     */
+    public PSFsettings(){
+    }
+
+    /**
+     * Returns a copy of the current PSFsettings object
+     * @return a new PSFsettings object carrying the same values
+     */
+    public PSFsettings copy(){
+        PSFsettings out=new PSFsettings();
+        out.zProfileAvgSize=zProfileAvgSize;
+        out.subPixelMethod=subPixelMethod;
+        out.subPixelRadius=subPixelRadius;
+        out.fitRadius=fitRadius.clone();
+        out.backgroundWidth=backgroundWidth;
+        return out;
+    }
+
+    /**
+     * Checks that the parameters can be used together
+     * @throws IllegalArgumentException if backgroundWidth is negative, or set while no xy fitting window is
+     */
+    public void check(){
+        if (backgroundWidth<0) throw new IllegalArgumentException("PSFsettings requieres backgroundWidth to be positive or null");
+        if (backgroundWidth>0 && Math.max(fitRadius[0], fitRadius[1])<=0) throw new IllegalArgumentException("PSFsettings requieres fitRadius to be set along x or y when backgroundWidth is used, the background annulus surrounding the xy fitting window");
+    }
+
+    /**
+     * Sets the fitting windows to a multiple of the theoretical resolution of the microscope
+     * @param microscope describes the microscope used
+     * @param factor the half-width of each window, expressed as a number of theoretical resolutions
+     * @param cal the calibration of the image to analyse, its unit being expected to match the microscope's (µm)
+     */
+    public void setFitRadius(microscope microscope, double factor, Calibration cal){
+        double[] pixelSize={cal.pixelWidth, cal.pixelHeight, cal.pixelDepth};
+        for (int i=0; i<3; i++) fitRadius[i]=Math.max(2, (int) Math.ceil(factor*microscope.resolution[i]/pixelSize[i]));
+    }
+
+    @Override
+    public String toString(){
+        return "zProfileAvgSize="+zProfileAvgSize+", subPixelMethod="+findMax.SUBPIXEL_METHODS[subPixelMethod]+", subPixelRadius="+subPixelRadius+", fitRadius="+Arrays.toString(fitRadius)+", backgroundWidth="+backgroundWidth;
+    }
+}
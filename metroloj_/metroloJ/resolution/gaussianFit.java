@@ -0,0 +1,121 @@
+/**
+ *
+ *  gaussianFit v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package metroloJ.resolution;
+
+import ij.IJ;
+
+/**
+ * gaussianFit stores the result of a fit on y = a + (b-a)*exp(-(x-c)^2/(2*d^2)), as performed by gaussianFitter.
+ * @author agent
+ */
+public class gaussianFit {
+    /** Background **/
+    public double a=Double.NaN;
+
+    /** Peak value **/
+    public double b=Double.NaN;
+
+    /** Peak position **/
+    public double c=Double.NaN;
+
+    /** Standard deviation (always positive) **/
+    public double d=Double.NaN;
+
+    /** Sum of residuals squared **/
+    public double SSE=Double.NaN;
+
+    /** Coefficient of determination **/
+    public double R2=Double.NaN;
+
+    /** Coefficient of determination, adjusted for the number of parameters (equivalent to CurveFitter's fit goodness) **/
+    public double fitGoodness=Double.NaN;
+
+    /** Number of points the fit was performed on **/
+    public int nPoints=0;
+
+    /** Number of iterations performed **/
+    public int nIterations=0;
+
+    /** True if the fit has converged before the maximum number of iterations was reached **/
+    public boolean converged=false;
+
+    /**
+     * Returns the fitted value at position x
+     * @param x the position where to evaluate the fitted function
+     * @return the fitted value as a double
+     */
+    public double f(double x){
+        return a+(b-a)*Math.exp(-(x-c)*(x-c)/(2*d*d));
+    }
+
+    /**
+     * Returns the fitted parameters
+     * @return the a, b, c and d parameters as a double array
+     */
+    public double[] getParams(){
+        return new double[]{a, b, c, d};
+    }
+
+    /**
+     * Returns the full width at half maximum of the fitted Gaussian
+     * @return the FWHM as a double
+     */
+    public double getFWHM(){
+        return 2*PSFprofiler.SQRT2LN2*d;
+    }
+
+    /**
+     * Tells whether the fit can be used: it should have converged to a finite, positive FWHM
+     * @return true if the fit is valid
+     */
+    public boolean isValid(){
+        return isValid(converged, getFWHM());
+    }
+
+    /**
+     * Tells whether a fit can be used: it should have converged to a finite, positive FWHM
+     * @param converged true if the fit has converged
+     * @param fwhm the fitted FWHM
+     * @return true if the fit is valid
+     */
+    static boolean isValid(boolean converged, double fwhm){
+        return converged && !Double.isNaN(fwhm) && !Double.isInfinite(fwhm) && fwhm>0;
+    }
+
+    /**
+     * Returns the fitting statistics and parameters as a String, laid out as the end of CurveFitter's result string
+     * @return the fitting results as a String
+     */
+    @Override
+    public String toString(){
+        return "\nSum of residuals squared: "+IJ.d2s(SSE, 5)
+              +"\nStandard deviation: "+IJ.d2s(nPoints>1?Math.sqrt(SSE/(nPoints-1)):Double.NaN, 5)
+              +"\nR^2: "+IJ.d2s(R2, 5)
+              +"\nParameters:"
+              +"\n\ta = "+IJ.d2s(a, 5)
+              +"\n\tb = "+IJ.d2s(b, 5)
+              +"\n\tc = "+IJ.d2s(c, 5)
+              +"\n\td = "+IJ.d2s(d, 5);
+    }
+}
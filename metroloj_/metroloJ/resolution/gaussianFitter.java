@@ -0,0 +1,271 @@
+/**
+ *
+ *  gaussianFitter v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package metroloJ.resolution;
+
+/**
+ * gaussianFitter fits 1D profiles on y = a + (b-a)*exp(-(x-c)^2/(2*d^2)) using the Levenberg-Marquardt algorithm and the analytical Jacobian of the function.
+ * All intermediate arrays are allocated once, when the gaussianFitter is created: a single gaussianFitter may be reused for any number of fits,
+ * but should not be shared between threads.
+ * @author agent
+ */
+public class gaussianFitter {
+    /** Number of parameters of the fitted function **/
+    public static final int N_PARAMS=4;
+
+    /** Maximum number of iterations **/
+    public int maxIterations=200;
+
+    /** Relative decrease of the sum of residuals squared below which the fit is considered as converged **/
+    public double tolerance=1e-10;
+
+    /** When true, the background (parameter a) is kept at its initial value and only b, c and d are fitted **/
+    public boolean fixBackground=false;
+
+    /** Approximated Hessian (J^T.J), stored row by row **/
+    private final double[] alpha=new double[N_PARAMS*N_PARAMS];
+
+    /** Gradient (J^T.residuals) **/
+    private final double[] beta=new double[N_PARAMS];
+
+    /** Damped Hessian, destroyed while solving for the step **/
+    private final double[] work=new double[N_PARAMS*N_PARAMS];
+
+    /** Step for the current iteration **/
+    private final double[] delta=new double[N_PARAMS];
+
+    /** Current parameters **/
+    private final double[] params=new double[N_PARAMS];
+
+    /** Parameters being tested **/
+    private final double[] trial=new double[N_PARAMS];
+
+    /** Partial derivatives of the function for the current point **/
+    private final double[] deriv=new double[N_PARAMS];
+
+    /**
+     * Creates a new gaussianFitter
+     */
+    public gaussianFitter(){
+    }
+
+    /**
+     * Estimates the initial parameters of a fit on part of the x/y arrays: minimum as background, maximum and its position as peak value and position,
+     * standard deviation derived from the number of points above half maximum. Levenberg-Marquardt may diverge on narrow profiles when started far from the solution,
+     * e.g. from a width set to a fraction of the profile's length.
+     * @param x the x values, evenly spaced
+     * @param y the y values
+     * @param offset index of the first point to consider
+     * @param length number of points to consider
+     * @return the a, b, c and d parameters as a double array
+     */
+    public static double[] getInitialParams(double[] x, double[] y, int offset, int length){
+        double[] params={y[offset], y[offset], x[offset], 0};
+        for (int i=offset; i<offset+length; i++){
+            params[0]=Math.min(params[0], y[i]);
+            if (y[i]>params[1]){
+                params[1]=y[i];
+                params[2]=x[i];
+            }
+        }
+        int nAboveHalfMax=0;
+        for (int i=offset; i<offset+length; i++) if (y[i]>=(params[0]+params[1])/2) nAboveHalfMax++;
+        double step=length>1?Math.abs(x[offset+length-1]-x[offset])/(length-1):1;
+        params[3]=Math.max(1, nAboveHalfMax)*step/(2*PSFprofiler.SQRT2LN2);
+        return params;
+    }
+
+    /**
+     * Fits the full x/y arrays.
+     * @param x the x values
+     * @param y the y values
+     * @param initialParams initial guess for the a, b, c and d parameters
+     * @return a new gaussianFit object holding the fitted parameters
+     */
+    public gaussianFit fit(double[] x, double[] y, double[] initialParams){
+        return fit(x, y, 0, x.length, initialParams, new gaussianFit());
+    }
+
+    /**
+     * Fits part of the x/y arrays, storing the results in the provided gaussianFit object. No memory is allocated during the fit.
+     * @param x the x values
+     * @param y the y values
+     * @param offset index of the first point to consider
+     * @param length number of points to consider
+     * @param initialParams initial guess for the a, b, c and d parameters
+     * @param result the gaussianFit object where to store the results
+     * @return the result object
+     */
+    public gaussianFit fit(double[] x, double[] y, int offset, int length, double[] initialParams, gaussianFit result){
+        if (length<N_PARAMS) throw new IllegalArgumentException("gaussianFitter requieres at least "+N_PARAMS+" points");
+        System.arraycopy(initialParams, 0, params, 0, N_PARAMS);
+        if (params[3]==0) params[3]=Math.abs(x[offset+length-1]-x[offset])/4;
+
+        double sse=getSSE(x, y, offset, length, params);
+        double lambda=1e-3;
+        int it=0;
+        boolean converged=false;
+
+        while (it<maxIterations && !converged){
+            it++;
+            buildNormalEquations(x, y, offset, length);
+            if (fixBackground){
+                //Decouples a from the other parameters so that the step along a is always 0
+                for (int i=0; i<N_PARAMS; i++){
+                    alpha[i]=0;
+                    alpha[i*N_PARAMS]=0;
+                }
+                alpha[0]=1;
+                beta[0]=0;
+            }
+
+            boolean improved=false;
+            while (!improved && !converged){
+                for (int i=0; i<N_PARAMS*N_PARAMS; i++) work[i]=alpha[i];
+                for (int i=0; i<N_PARAMS; i++){
+                    int diag=i*N_PARAMS+i;
+                    work[diag]=alpha[diag]!=0?alpha[diag]*(1+lambda):lambda;
+                    delta[i]=beta[i];
+                }
+
+                double newSse=Double.NaN;
+                if (solve()){
+                    for (int i=0; i<N_PARAMS; i++) trial[i]=params[i]+delta[i];
+                    newSse=getSSE(x, y, offset, length, trial);
+                }
+
+                if (newSse<=sse){
+                    improved=true;
+                    converged=sse-newSse<=tolerance*sse;
+                    System.arraycopy(trial, 0, params, 0, N_PARAMS);
+                    sse=newSse;
+                    lambda=Math.max(lambda/10, 1e-12);
+                }else{
+                    lambda*=10;
+                    //No step can decrease the residuals anymore: we are at the minimum
+                    if (lambda>1e12) converged=true;
+                }
+            }
+        }
+
+        result.a=params[0];
+        result.b=params[1];
+        result.c=params[2];
+        result.d=Math.abs(params[3]);
+        result.SSE=sse;
+        result.nPoints=length;
+        result.nIterations=it;
+        result.converged=converged;
+
+        double mean=0;
+        for (int i=offset; i<offset+length; i++) mean+=y[i];
+        mean/=length;
+        double sumMeanDiffSqr=0;
+        for (int i=offset; i<offset+length; i++) sumMeanDiffSqr+=(y[i]-mean)*(y[i]-mean);
+        result.R2=sumMeanDiffSqr>0?1-sse/sumMeanDiffSqr:Double.NaN;
+        int nFree=fixBackground?N_PARAMS-1:N_PARAMS;
+        result.fitGoodness=sumMeanDiffSqr>0 && length>nFree?1-(sse/sumMeanDiffSqr)*length/(length-nFree):0;
+
+        return result;
+    }
+
+    /**
+     * Calculates the sum of residuals squared for the provided parameters
+     * @return the sum of residuals squared as a double
+     */
+    private double getSSE(double[] x, double[] y, int offset, int length, double[] p){
+        double sse=0;
+        double twoDSqr=2*p[3]*p[3];
+        for (int i=offset; i<offset+length; i++){
+            double dx=x[i]-p[2];
+            double res=y[i]-(p[0]+(p[1]-p[0])*Math.exp(-dx*dx/twoDSqr));
+            sse+=res*res;
+        }
+        return sse;
+    }
+
+    /**
+     * Fills alpha (J^T.J) and beta (J^T.residuals) for the current parameters
+     */
+    private void buildNormalEquations(double[] x, double[] y, int offset, int length){
+        for (int i=0; i<N_PARAMS*N_PARAMS; i++) alpha[i]=0;
+        for (int i=0; i<N_PARAMS; i++) beta[i]=0;
+
+        double a=params[0], b=params[1], c=params[2], d=params[3];
+        double dSqr=d*d;
+        for (int n=offset; n<offset+length; n++){
+            double dx=x[n]-c;
+            double e=Math.exp(-dx*dx/(2*dSqr));
+            double res=y[n]-(a+(b-a)*e);
+            double amp=(b-a)*e;
+
+            deriv[0]=1-e;
+            deriv[1]=e;
+            deriv[2]=amp*dx/dSqr;
+            deriv[3]=amp*dx*dx/(dSqr*d);
+
+            for (int i=0; i<N_PARAMS; i++){
+                beta[i]+=deriv[i]*res;
+                for (int j=0; j<=i; j++) alpha[i*N_PARAMS+j]+=deriv[i]*deriv[j];
+            }
+        }
+        for (int i=0; i<N_PARAMS; i++){
+            for (int j=i+1; j<N_PARAMS; j++) alpha[i*N_PARAMS+j]=alpha[j*N_PARAMS+i];
+        }
+    }
+
+    /**
+     * Solves work.delta=beta (beta having been copied to delta) by Gaussian elimination with partial pivoting
+     * @return false if the system is singular
+     */
+    private boolean solve(){
+        for (int col=0; col<N_PARAMS; col++){
+            int pivot=col;
+            for (int row=col+1; row<N_PARAMS; row++){
+                if (Math.abs(work[row*N_PARAMS+col])>Math.abs(work[pivot*N_PARAMS+col])) pivot=row;
+            }
+            if (work[pivot*N_PARAMS+col]==0 || Double.isNaN(work[pivot*N_PARAMS+col])) return false;
+            if (pivot!=col){
+                for (int k=0; k<N_PARAMS; k++){
+                    double tmp=work[col*N_PARAMS+k];
+                    work[col*N_PARAMS+k]=work[pivot*N_PARAMS+k];
+                    work[pivot*N_PARAMS+k]=tmp;
+                }
+                double tmp=delta[col];
+                delta[col]=delta[pivot];
+                delta[pivot]=tmp;
+            }
+            for (int row=col+1; row<N_PARAMS; row++){
+                double factor=work[row*N_PARAMS+col]/work[col*N_PARAMS+col];
+                for (int k=col; k<N_PARAMS; k++) work[row*N_PARAMS+k]-=factor*work[col*N_PARAMS+k];
+                delta[row]-=factor*delta[col];
+            }
+        }
+        for (int row=N_PARAMS-1; row>=0; row--){
+            double sum=delta[row];
+            for (int k=row+1; k<N_PARAMS; k++) sum-=work[row*N_PARAMS+k]*delta[k];
+            delta[row]=sum/work[row*N_PARAMS+row];
+        }
+        return true;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ *
+ *  zProfileEstimator v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package metroloJ.resolution;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/**
+ * zProfileEstimator gives a fast estimate of the axial resolution (FWHM) of any full-height window of a 2D XZ or YZ image,
+ * to be used as a live preview while the window is being moved. Per row prefix sums are computed once per image so that
+ * the profile of any window, averaged over its columns as zProfiler does, is obtained in O(height). Each fit is started
+ * from the parameters of the previous one, falling back to the usual initial guess whenever this warm start fails.
+ * @author agent
+ */
+public class zProfileEstimator {
+    /** Input ImagePlus's calibration **/
+    Calibration cal=new Calibration();
+
+    /** Width of the image **/
+    int width;
+
+    /** Height of the image **/
+    int height;
+
+    /** Per row prefix sums: element y*(width+1)+x holds the sum of the x first pixels of row y **/
+    double[] prefix;
+
+    /** Calibrated z position of each row **/
+    double[] dist;
+
+    /** Fitter, reused from one estimate to the next **/
+    gaussianFitter fitter=new gaussianFitter();
+
+    /** Result of the last fit **/
+    gaussianFit fit=new gaussianFit();
+
+    /** Parameters of the last successful fit, used as a starting point for the next one, null if none **/
+    double[] lastParams=null;
+
+    /**
+     * Builds a new zProfileEstimator object
+     * @param ip ImagePlus on which the estimates are made (2D XZ or YZ image, 8-, 16- or 32-bits)
+     */
+    public zProfileEstimator(ImagePlus ip){
+        if (ip.getBitDepth()==24) throw new IllegalArgumentException("zProfileEstimator expects a 8-, 16- or 32-bits image");
+        cal=ip.getGlobalCalibration()==null?ip.getCalibration():ip.getGlobalCalibration();
+        width=ip.getWidth();
+        height=ip.getHeight();
+
+        ImageProcessor iproc=ip.getProcessor();
+        prefix=new double[(width+1)*height];
+        for (int y=0; y<height; y++){
+            int offset=y*(width+1);
+            for (int x=0; x<width; x++) prefix[offset+x+1]=prefix[offset+x]+iproc.getf(x+y*width);
+        }
+
+        dist=new double[height];
+        for (int y=0; y<height; y++) dist[y]=y*cal.pixelHeight;
+    }
+
+    /**
+     * Returns the z profile of a full-height window, as the average of its columns. The window is clipped to the image.
+     * @param x x coordinate of the window's left edge, in pixels
+     * @param w width of the window, in pixels
+     * @return the profile as a double array, null if the window doesn't overlap the image
+     */
+    public double[] getProfile(int x, int w){
+        int start=Math.max(0, x), end=Math.min(width, x+w);
+        if (end<=start) return null;
+
+        int n=end-start;
+        double[] profile=new double[height];
+        for (int y=0; y<height; y++) profile[y]=(prefix[y*(width+1)+end]-prefix[y*(width+1)+start])/n;
+        return profile;
+    }
+
+    /**
+     * Estimates the FWHM of the z profile of a full-height window, starting the fit from the previous estimate's parameters
+     * @param x x coordinate of the window's left edge, in pixels
+     * @param w width of the window, in pixels
+     * @return the FWHM, NaN if the window doesn't overlap the image or the fit failed
+     */
+    public synchronized double getResolution(int x, int w){
+        double[] profile=getProfile(x, w);
+        if (profile==null) return Double.NaN;
+
+        boolean done=false;
+        if (lastParams!=null){
+            fitter.fit(dist, profile, 0, height, lastParams, fit);
+            done=fit.isValid();
+        }
+        if (!done){
+            fitter.fit(dist, profile, 0, height, gaussianFitter.getInitialParams(dist, profile, 0, height), fit);
+            done=fit.isValid();
+        }
+
+        if (!done){
+            lastParams=null;
+            return Double.NaN;
+        }
+        lastParams=fit.getParams();
+        return fit.getFWHM();
+    }
+
+    /**
+     * Returns the calibration's unit
+     * @return the unit as a String
+     */
+    public String getUnit(){
+        return cal.getUnit();
+    }
+}
@@ -29,18 +29,20 @@ import ij.gui.Plot;
 import ij.gui.Roi;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
-import ij.measure.CurveFitter;
 import ij.process.ImageProcessor;
 import java.awt.Color;
 import java.awt.Rectangle;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import metroloJ.setup.microscope;
 import metroloJ.utilities.tricks.dataTricks;
 import metroloJ.utilities.proj2D;
+import metroloJ.utilities.resultCache;
 import metroloJ.utilities.sideViewGenerator;
 
 /**
@@ -79,6 +81,12 @@ public class zProfiler {
     /** Stores the calculated resolution (FWHM) from the profile **/
     double resol=0;
 
+    /** True if the fit has converged **/
+    boolean converged=false;
+
+    /** Version of the algorithm, part of the resultCache key: to be incremented with any change that may modify the cached results **/
+    static final String CACHE_VERSION="2";
+
 
     /**
      * Builds a new zProfiler object.
@@ -86,49 +94,99 @@ public class zProfiler {
      * @param roi the roi where quantification should be done.
      */
     public zProfiler(ImagePlus ip, Roi roi){
+        this(ip, roi, false);
+    }
+
+    /**
+     * Builds a new zProfiler object, possibly retrieving the profile and its fit from the resultCache.
+     * @param ip ImagePlus on which the zProfiler object is built.
+     * @param roi the roi where quantification should be done.
+     * @param useCache true to use the resultCache (if enabled)
+     */
+    public zProfiler(ImagePlus ip, Roi roi, boolean useCache){
         this.ip=ip;
         this.roi=roi;
         cal=ip.getGlobalCalibration()==null?ip.getCalibration():ip.getGlobalCalibration();
-        
+
+        String cacheKey=null;
+        if (useCache && resultCache.isEnabled()){
+            String roiString="none";
+            if (roi!=null) roiString=roi.getTypeAsString()+Arrays.toString(roi.getPolygon().xpoints)+Arrays.toString(roi.getPolygon().ypoints);
+            cacheKey=resultCache.getKey("zProfiler", CACHE_VERSION, "roi="+roiString+", cal="+cal.pixelWidth+"x"+cal.pixelHeight+cal.getUnit(), ip);
+            cachedResults cached=resultCache.get(cacheKey, cachedResults.class);
+            if (cached!=null){
+                cached.restore(this);
+                return;
+            }
+        }
         
         rawProfile=new proj2D().doProj(ip, roi);
         fitProfile();
+        if (cacheKey!=null) resultCache.put(cacheKey, new cachedResults(this));
+    }
+
+    /**
+     * Builds a new zProfiler object from an already computed profile (see zProfilerMap).
+     * @param ip ImagePlus on which the zProfiler object is built.
+     * @param roi the roi the profile was computed on.
+     * @param rawProfile the z intensity profile, averaged over the roi's width.
+     */
+    zProfiler(ImagePlus ip, Roi roi, double[] rawProfile){
+        this.ip=ip;
+        this.roi=roi;
+        cal=ip.getGlobalCalibration()==null?ip.getCalibration():ip.getGlobalCalibration();
+        this.rawProfile=rawProfile;
+        fitProfile();
+    }
+
+    /**
+     * Stores the profile and fitting results of a zProfiler, to be saved in/retrieved from the resultCache
+     */
+    static class cachedResults implements Serializable {
+        private static final long serialVersionUID=1L;
+
+        double[] dist, rawProfile, fitProfile, params;
+        String paramString;
+        double resol;
+        boolean converged;
+
+        cachedResults(zProfiler zp){
+            dist=zp.dist;
+            rawProfile=zp.rawProfile;
+            fitProfile=zp.fitProfile;
+            params=zp.params;
+            paramString=zp.paramString;
+            resol=zp.resol;
+            converged=zp.converged;
+        }
+
+        void restore(zProfiler zp){
+            zp.dist=dist;
+            zp.rawProfile=rawProfile;
+            zp.fitProfile=fitProfile;
+            zp.params=params;
+            zp.paramString=paramString;
+            zp.resol=resol;
+            zp.converged=converged;
+        }
     }
 
     /**
      * Performs the fitting on the retrieved profile.
      */
     private void fitProfile(){
-        double max=rawProfile[0];
-        params=new double[4];
-        params[0]=max;
-        params[1]=max;
-        params[2]=0;
-        
         dist=new double[rawProfile.length];
+        for (int i=0; i<rawProfile.length; i++) dist[i]=i*cal.pixelHeight;
+        params=gaussianFitter.getInitialParams(dist, rawProfile, 0, rawProfile.length);
 
-        for (int i=0; i<rawProfile.length; i++){
-            dist[i]=i*cal.pixelHeight;
-            double currVal=rawProfile[i];
-            params[0]=Math.min(params[0], currVal);
-            if (currVal>max){
-                params[1]=currVal;
-                params[2]=dist[i];
-                max=currVal;
-            }
-        }
-        params[3]=ip.getHeight()*cal.pixelHeight/2;
-
-        CurveFitter cv=new CurveFitter(dist, rawProfile);
-        cv.setInitialParameters(params);
-        cv.doFit(CurveFitter.GAUSSIAN);
-        params=cv.getParams();
-        String resultString=cv.getResultString();
-        paramString=paramString+resultString.substring(resultString.lastIndexOf("ms")+2);
+        gaussianFit fit=new gaussianFitter().fit(dist, rawProfile, params);
+        params=fit.getParams();
+        paramString=paramString+fit.toString();
         
         fitProfile=new double[rawProfile.length];
-        for (int i=0; i<rawProfile.length; i++) fitProfile[i]=CurveFitter.f(CurveFitter.GAUSSIAN, params, dist[i]);
-        resol=2*SQRT2LN2*params[3];
+        for (int i=0; i<rawProfile.length; i++) fitProfile[i]=fit.f(dist[i]);
+        resol=fit.getFWHM();
+        converged=fit.converged;
     }
 
     /**
@@ -161,6 +219,14 @@ public class zProfiler {
         return resol;
     }
 
+    /**
+     * Tells whether the fit can be used: it should have converged to a finite, positive FWHM
+     * @return true if the fit is valid
+     */
+    public boolean isValid(){
+        return gaussianFit.isValid(converged, resol);
+    }
+
     /**
      * Returns an ImagePlus of the input image, where the ROI and scale bar might have been drawn.
      * @param drawRoi true is the Roi should be drawn.
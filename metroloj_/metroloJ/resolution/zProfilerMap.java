@@ -0,0 +1,315 @@
+/**
+ *
+ *  zProfilerMap v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package metroloJ.resolution;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Plot;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.measure.CurveFitter;
+import java.awt.Color;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import metroloJ.setup.microscope;
+import metroloJ.utilities.tricks.dataTricks;
+import metroloJ.utilities.tricks.threadTricks;
+
+/**
+ * zProfilerMap slides a full-height window across the width of a 2D XZ or YZ image (typically the scan of a reflective slide),
+ * fits the z profile of each window in parallel and reports the axial resolution (FWHM) as a function of the lateral position.
+ * The position of the profiles' peaks is fitted against the lateral position to estimate the tilt and curvature of the imaged plane.
+ * Each window's profile is the average of its columns, as measured by zProfiler, and is obtained from per row prefix sums in O(height).
+ * @author agent
+ */
+public class zProfilerMap {
+    /** Input ImagePlus **/
+    ImagePlus ip;
+
+    /** Input ImagePlus's calibration **/
+    Calibration cal=new Calibration();
+
+    /** Width of the windows, in pixels **/
+    int windowWidth;
+
+    /** Distance between consecutive windows, in pixels **/
+    int stride;
+
+    /** Provides the windows' profiles from per row prefix sums **/
+    zProfileEstimator estimator;
+
+    /** Stores the zProfiler of each window, null if its fit failed **/
+    zProfiler[] profilers;
+
+    /** Calibrated lateral position of each window's centre **/
+    double[] positions;
+
+    /** FWHM measured on each window, NaN if its fit failed **/
+    double[] resolutions;
+
+    /** Calibrated z position of each window's profile peak, NaN if its fit failed **/
+    double[] peaks;
+
+    /** Slope of the linear fit of the peaks' positions against the lateral position **/
+    double tilt=Double.NaN;
+
+    /** Second derivative of the quadratic fit of the peaks' positions against the lateral position **/
+    double curvature=Double.NaN;
+
+    /**
+     * Builds a new zProfilerMap object
+     * @param ip ImagePlus on which the zProfilerMap object is built (2D XZ or YZ image, 8-, 16- or 32-bits)
+     * @param windowWidth width of the windows, in pixels
+     * @param stride distance between consecutive windows, in pixels
+     */
+    public zProfilerMap(ImagePlus ip, int windowWidth, int stride){
+        if (windowWidth<1 || windowWidth>ip.getWidth()) throw new IllegalArgumentException("zProfilerMap requieres the window's width to be between 1 and the image's width");
+        if (stride<1) throw new IllegalArgumentException("zProfilerMap requieres the stride to be at least 1");
+        if (ip.getBitDepth()==24) throw new IllegalArgumentException("zProfilerMap expects a 8-, 16- or 32-bits image");
+        if (ip.getHeight()<gaussianFitter.N_PARAMS) throw new IllegalArgumentException("zProfilerMap requieres the image to be at least "+gaussianFitter.N_PARAMS+" pixels high");
+
+        this.ip=ip;
+        this.windowWidth=windowWidth;
+        this.stride=stride;
+        cal=ip.getGlobalCalibration()==null?ip.getCalibration():ip.getGlobalCalibration();
+
+        estimator=new zProfileEstimator(ip);
+
+        int nWindows=(ip.getWidth()-windowWidth)/stride+1;
+        profilers=new zProfiler[nWindows];
+        positions=new double[nWindows];
+        resolutions=new double[nWindows];
+        peaks=new double[nWindows];
+        threadTricks.getPool().invoke(new fitTask(0, nWindows));
+        estimator=null;
+
+        fitPeaks();
+    }
+
+    /**
+     * Computes the profile of a window from the prefix sums and fits it. Windows whose fit did not converge to a finite, positive FWHM
+     * are marked as failed: their zProfiler is set to null, their FWHM and peak position to NaN
+     * @param i the window's index
+     */
+    private void analyseWindow(int i){
+        int start=i*stride;
+        double[] profile=estimator.getProfile(start, windowWidth);
+
+        positions[i]=(start+windowWidth/2.0)*cal.pixelWidth;
+        zProfiler profiler=new zProfiler(ip, new Roi(start, 0, windowWidth, ip.getHeight()), profile);
+        if (profiler.isValid()){
+            profilers[i]=profiler;
+            resolutions[i]=profiler.getResolution();
+            peaks[i]=profiler.params[2];
+        }else{
+            profilers[i]=null;
+            resolutions[i]=Double.NaN;
+            peaks[i]=Double.NaN;
+            Logger.getLogger(zProfilerMap.class.getName()).log(Level.WARNING, "Profile fit failed for window at x="+start);
+        }
+    }
+
+    /**
+     * Analyses a range of windows, splitting the work in halves until a single window is left
+     */
+    private class fitTask extends RecursiveAction {
+        private static final long serialVersionUID=1L;
+
+        int start, end;
+
+        fitTask(int start, int end){
+            this.start=start;
+            this.end=end;
+        }
+
+        @Override
+        protected void compute(){
+            if (end-start<=1){
+                if (end>start) analyseWindow(start);
+            }else{
+                int middle=(start+end)/2;
+                invokeAll(new fitTask(start, middle), new fitTask(middle, end));
+            }
+        }
+    }
+
+    /**
+     * Fits the peaks' positions against the lateral position: the slope of a linear fit gives the tilt,
+     * the second derivative of a quadratic fit the curvature. Windows whose fit failed are ignored.
+     */
+    private void fitPeaks(){
+        double[] x=new double[peaks.length], y=new double[peaks.length];
+        int n=0;
+        for (int i=0; i<peaks.length; i++){
+            if (!Double.isNaN(peaks[i]) && !Double.isInfinite(peaks[i]) && !Double.isNaN(resolutions[i])){
+                x[n]=positions[i];
+                y[n]=peaks[i];
+                n++;
+            }
+        }
+        x=Arrays.copyOf(x, n);
+        y=Arrays.copyOf(y, n);
+
+        if (n>=2){
+            CurveFitter cf=new CurveFitter(x, y);
+            cf.doFit(CurveFitter.STRAIGHT_LINE);
+            tilt=cf.getParams()[1];
+        }
+        if (n>=3){
+            CurveFitter cf=new CurveFitter(x, y);
+            cf.doFit(CurveFitter.POLY2);
+            curvature=2*cf.getParams()[2];
+        }
+    }
+
+    /**
+     * Returns the calibrated lateral positions of the windows' centres
+     * @return a double array
+     */
+    public double[] getPositions(){
+        return positions;
+    }
+
+    /**
+     * Returns the FWHM measured on each window
+     * @return a double array, containing NaN for windows whose fit failed
+     */
+    public double[] getResolutions(){
+        return resolutions;
+    }
+
+    /**
+     * Returns the calibrated z position of each window's profile peak
+     * @return a double array, containing NaN for windows whose fit failed
+     */
+    public double[] getPeaks(){
+        return peaks;
+    }
+
+    /**
+     * Returns the zProfiler of a single window, to retrieve its profile, fit parameters...
+     * @param i the window's index
+     * @return the zProfiler, null if the fit failed
+     */
+    public zProfiler getProfiler(int i){
+        return profilers[i];
+    }
+
+    /**
+     * Returns the tilt of the imaged plane, as the slope of the linear fit of the peaks' positions against the lateral position
+     * @return the tilt (z variation per unit of lateral displacement), NaN if less than 2 windows were successfully fitted
+     */
+    public double getTilt(){
+        return tilt;
+    }
+
+    /**
+     * Returns the tilt of the imaged plane as an angle
+     * @return the angle in degrees, NaN if less than 2 windows were successfully fitted
+     */
+    public double getTiltAngle(){
+        return Math.toDegrees(Math.atan(tilt));
+    }
+
+    /**
+     * Returns the curvature of the imaged plane, as the second derivative of the quadratic fit of the peaks' positions against the lateral position
+     * @return the curvature (in 1/unit), NaN if less than 3 windows were successfully fitted
+     */
+    public double getCurvature(){
+        return curvature;
+    }
+
+    /**
+     * Returns the FWHM measured on the successfully fitted windows, sorted in ascending order
+     * @return a sorted double array
+     */
+    private double[] getSortedResolutions(){
+        double[] tmp=new double[resolutions.length];
+        int n=0;
+        for (int i=0; i<resolutions.length; i++) if (!Double.isNaN(resolutions[i]) && !Double.isInfinite(resolutions[i])) tmp[n++]=resolutions[i];
+        double[] out=Arrays.copyOf(tmp, n);
+        Arrays.sort(out);
+        return out;
+    }
+
+    /**
+     * Returns a plot of the FWHM against the lateral position
+     * @return a plot object.
+     */
+    public Plot getPlot(){
+        Plot plot=new Plot("Axial resolution across the field", "x ("+cal.getUnit()+")", "FWHM ("+cal.getUnit()+")");
+        plot.setSize(300, 200);
+        plot.setColor(Color.red);
+        plot.addPoints(positions, resolutions, Plot.CONNECTED_CIRCLES);
+        plot.setLimitsToFit(false);
+        return plot;
+    }
+
+    /**
+     * Generates a array of string containing the FWHM statistics across the field, the tilt and curvature, and the theoretical resolution, based on the input microscope setup
+     * @param microscope describes the microscope used
+     * @return an array of strings
+     */
+    public String[][] getSummary(microscope microscope){
+        double[] sorted=getSortedResolutions();
+        String min=sorted.length==0?"NaN":dataTricks.round(sorted[0], 3)+" "+cal.getUnit();
+        String median=sorted.length==0?"NaN":dataTricks.round(sorted[sorted.length/2], 3)+" "+cal.getUnit();
+        String max=sorted.length==0?"NaN":dataTricks.round(sorted[sorted.length-1], 3)+" "+cal.getUnit();
+        String[][] output={{"", "z"},
+        {"FWHM (min)", min},
+        {"FWHM (median)", median},
+        {"FWHM (max)", max},
+        {"Nb of windows", sorted.length+"/"+resolutions.length},
+        {"Tilt", dataTricks.round(getTiltAngle(), 3)+"°"},
+        {"Curvature", dataTricks.round(curvature, 5)+" 1/"+cal.getUnit()},
+        {"Theoretical resolution", dataTricks.round(microscope.resolution[2], 3)+" "+IJ.micronSymbol+"m"}};
+        return output;
+    }
+
+    /**
+     * Saves the per window results as a tab-delimited file
+     * @param path directory were to save
+     * @param filename name of the file (without the extension)
+     */
+    public void saveData(String path, String filename){
+        BufferedWriter out = null;
+        try {
+            out = new BufferedWriter(new FileWriter(path + filename + "_map.xls"));
+            out.write("Position ("+cal.getUnit()+")\tFWHM ("+cal.getUnit()+")\tPeak position ("+cal.getUnit()+")");
+            out.newLine();
+            for (int i=0; i<positions.length; i++){
+                out.write(positions[i]+"\t"+resolutions[i]+"\t"+peaks[i]);
+                out.newLine();
+            }
+            out.close();
+        } catch (IOException ex) {
+            Logger.getLogger(zProfilerMap.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -23,14 +23,11 @@
 
 package metroloJ.utilities;
 
-import utilities.segmentation.HistogramSegmentation;
 import ij.ImagePlus;
-import ij.gui.PolygonRoi;
-import ij.gui.Roi;
-import ij.gui.Wand;
-import ij.process.EllipseFitter;
-import ij.process.ImageConverter;
-import ij.process.ImageStatistics;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import utilities.segmentation.HistogramSegmentation;
 
 /**
  * findMax is to be used to retrieve the coordinates. Coordinates are uncalibrated.
@@ -41,6 +38,21 @@ public class findCentre {
     public static final int XZ=1;
     public static final int YZ=2;
 
+    /** Default maximum number of iterations, both for thresholding and centre refinement **/
+    public static final int MAX_ITERATIONS=100;
+
+    /** Default maximum time allowed to refine a centre, in milliseconds **/
+    public static final long TIMEOUT=2000;
+
+    /** Number of bins of the histogram used to threshold the projections **/
+    private static final int N_BINS=256;
+
+    /** Maximum number of iterations, both for thresholding and centre refinement **/
+    public int maxIterations=MAX_ITERATIONS;
+
+    /** Maximum time allowed to refine a centre, in milliseconds. Once elapsed, the best estimate so far is returned **/
+    public long timeout=TIMEOUT;
+
     /**
      *Starts the process of creation of a new findMax object
      */
@@ -69,14 +81,91 @@ public class findCentre {
     }
 
     /**
-     * Retrieves the x and y coordinates of the geometrical centre on the current ImagePlus, on the current slice
+     * Retrieves the sub-pixel coordinates of the brightest object, working on the raw intensities of the stack (no 8-bits conversion, no projection).
+     * The object is first located on the XY and XZ SUM projections (see get2DCenter), then its centre is computed as the background-subtracted,
+     * intensity-weighted centroid of the voxels within a box of 3 standard deviations around it. The background is the mean intensity of the
+     * box's faces. The box is re-centred on the centroid until it moves by less than 0.001 pixel, for at most maxIterations iterations or timeout milliseconds.
+     * @param ip ImagePlus on which to find the centre (8-, 16- or 32-bits)
+     * @return an array of double of size 2 in 2D, 3 in 3D. x coordinate will be found within the array at index 0, y at index 1 and if applicable z at position 2.
+     * Coordinates follow the same convention as getAllCoordinates
+     */
+    public double[] getSubPixelCoordinates(ImagePlus ip){
+        long start=System.currentTimeMillis();
+        ImageStack is=ip.getStack();
+        int w=ip.getWidth(), h=ip.getHeight(), d=is.getSize();
+
+        ImagePlus proj=new sideViewGenerator().getXYview(ip, sideViewGenerator.SUM_METHOD);
+        double[] xy=locate((float[]) proj.getProcessor().convertToFloat().getPixels(), w, h);
+        double[] centre={xy[0], xy[1], 0};
+        double radius=xy[2], zRadius=0;
+        if (d>1){
+            proj=new sideViewGenerator().getXZview(ip, sideViewGenerator.SUM_METHOD, false);
+            double[] xz=locate((float[]) proj.getProcessor().convertToFloat().getPixels(), w, d);
+            centre[2]=xz[1];
+            zRadius=xz[2];
+        }
+
+        //Planes are read once, when the box first reaches them, rather than twice per iteration
+        ImageProcessor[] planes=new ImageProcessor[d];
+
+        for (int it=0; it<maxIterations && System.currentTimeMillis()-start<timeout; it++){
+            int[] min={Math.max(0, (int) Math.floor(centre[0]-radius)), Math.max(0, (int) Math.floor(centre[1]-radius)), Math.max(0, (int) Math.floor(centre[2]-zRadius))};
+            int[] max={Math.min(w-1, (int) Math.ceil(centre[0]+radius)), Math.min(h-1, (int) Math.ceil(centre[1]+radius)), Math.min(d-1, (int) Math.ceil(centre[2]+zRadius))};
+
+            //Background: mean intensity on the box's faces (the z faces being ignored on single planes)
+            double background=0;
+            int nBorder=0;
+            for (int z=min[2]; z<=max[2]; z++){
+                if (planes[z]==null) planes[z]=is.getProcessor(z+1);
+                ImageProcessor iproc=planes[z];
+                boolean zFace=d>1 && (z==min[2] || z==max[2]);
+                for (int y=min[1]; y<=max[1]; y++){
+                    for (int x=min[0]; x<=max[0]; x++){
+                        if (zFace || x==min[0] || x==max[0] || y==min[1] || y==max[1]){
+                            background+=iproc.getf(x, y);
+                            nBorder++;
+                        }
+                    }
+                }
+            }
+            background/=nBorder;
+
+            double sum=0, xSum=0, ySum=0, zSum=0;
+            for (int z=min[2]; z<=max[2]; z++){
+                ImageProcessor iproc=planes[z];
+                for (int y=min[1]; y<=max[1]; y++){
+                    for (int x=min[0]; x<=max[0]; x++){
+                        double weight=iproc.getf(x, y)-background;
+                        if (weight>0){
+                            sum+=weight;
+                            xSum+=weight*x;
+                            ySum+=weight*y;
+                            zSum+=weight*z;
+                        }
+                    }
+                }
+            }
+            if (sum<=0) break;
+
+            double[] previous=centre;
+            centre=new double[]{xSum/sum, ySum/sum, zSum/sum};
+            if (Math.abs(centre[0]-previous[0])<0.001 && Math.abs(centre[1]-previous[1])<0.001 && Math.abs(centre[2]-previous[2])<0.001) break;
+        }
+
+        if (d==1) return new double[]{centre[0]+0.5, centre[1]+0.5};
+        return new double[]{centre[0]+0.5, centre[1]+0.5, centre[2]+0.5};
+    }
+
+    /**
+     * Retrieves the x and y coordinates of the geometrical centre on the current ImagePlus, on the current slice.
+     * The SUM projection is thresholded (see getThreshold), then the centre is computed as the intensity-weighted centroid
+     * of the above-threshold pixels connected to the brightest one. The centroid is refined within a window sized after
+     * the object's second moments, for at most maxIterations iterations or timeout milliseconds.
      * @param ip ImagePlus on which to find the centre.
      * @param profileType indicates the profile orientation to be used: 0 for XY, 1 for XZ and 2 for YZ.
      * @return an array of integer of size 2. Depending on profileType, x or y coordinate will be found within the array at index 0, y or z at index 1.
      */
     public double[] get2DCenter(ImagePlus ip, int profileType){
-        double[] coord=new double[2];
-
         ImagePlus proj=null;
         switch (profileType){
             case XY: proj=new sideViewGenerator().getXYview(ip, sideViewGenerator.SUM_METHOD); break;
@@ -84,30 +173,141 @@ public class findCentre {
             case YZ: proj=new sideViewGenerator().getYZview(ip, sideViewGenerator.SUM_METHOD, false); break;
             default: proj=new sideViewGenerator().getXYview(ip, sideViewGenerator.SUM_METHOD); break;
         }
-        new ImageConverter(proj).convertToGray8();
-        proj.updateImage();
-        
-        HistogramSegmentation hs=new HistogramSegmentation(proj);
-        hs.calcLimits(2, 100, 0, true);
-        proj=hs.getsegmentedImage(proj, 1);
-        proj.updateImage();
-
-
-        ImageStatistics is=proj.getStatistics(ImageStatistics.CENTER_OF_MASS);
-        Wand wand=new Wand(proj.getProcessor());
-        coord[0]=is.xCenterOfMass;
-        coord[1]=is.yCenterOfMass;
-
-
-        EllipseFitter ef=new EllipseFitter();
-        do{
-            wand.autoOutline((int) (coord[0]+.5), (int) (coord[1]+.5), 128, 255);
-            proj.setRoi(new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, Roi.POLYGON));
-            ef.fit(proj.getProcessor(), null);
-            coord[0]=ef.xCenter+1;
-            coord[1]=ef.yCenter;
-        }while(ef.minor<2);
-        coord[0]--;
-        return coord;
+        return getCentre((float[]) proj.getProcessor().convertToFloat().getPixels(), proj.getWidth(), proj.getHeight());
+    }
+
+    /**
+     * Retrieves the centre of the brightest object of an image, as the intensity-weighted centroid of its above-threshold pixels
+     * @param pixels the image's pixels
+     * @param width the image's width
+     * @param height the image's height
+     * @return an array of double of size 2, x being at index 0, y at index 1. Coordinates refer to pixels' corners (i.e. the centre of the first pixel is at 0.5)
+     */
+    public double[] getCentre(float[] pixels, int width, int height){
+        double[] centre=locate(pixels, width, height);
+        return new double[]{centre[0]+0.5, centre[1]+0.5};
+    }
+
+    /**
+     * Locates the brightest object of an image (see getCentre)
+     * @param pixels the image's pixels
+     * @param width the image's width
+     * @param height the image's height
+     * @return an array of double of size 3: x and y coordinates of the centroid (the centre of the first pixel being at 0) at index 0 and 1,
+     * radius of the refinement window at index 2
+     */
+    private double[] locate(float[] pixels, int width, int height){
+        long start=System.currentTimeMillis();
+        float threshold=getThreshold(pixels, width, height);
+
+        //Moments of the above-threshold pixels connected to the brightest one, weighted by their intensity above threshold
+        int seed=0;
+        for (int i=1; i<pixels.length; i++) if (pixels[i]>pixels[seed]) seed=i;
+        double[] moments=new double[6];
+        boolean[] visited=new boolean[pixels.length];
+        int[] queue=new int[pixels.length];
+        int head=0, tail=0;
+        queue[tail++]=seed;
+        visited[seed]=true;
+        while (head<tail){
+            int index=queue[head++];
+            int x=index%width, y=index/width;
+            addMoments(moments, x, y, pixels[index]-threshold);
+            for (int dy=-1; dy<=1; dy++){
+                for (int dx=-1; dx<=1; dx++){
+                    int nx=x+dx, ny=y+dy;
+                    if (nx<0 || ny<0 || nx>=width || ny>=height) continue;
+                    int next=nx+ny*width;
+                    if (!visited[next] && pixels[next]>=threshold){
+                        visited[next]=true;
+                        queue[tail++]=next;
+                    }
+                }
+            }
+        }
+        double[] centre=getCentroid(moments, seed%width, seed/width);
+
+        //Refinement within a window of 3 standard deviations around the current centre
+        double radius=getRadius(moments);
+        for (int it=0; it<maxIterations && System.currentTimeMillis()-start<timeout; it++){
+            moments=new double[6];
+            int xStart=Math.max(0, (int) Math.floor(centre[0]-radius)), xEnd=Math.min(width-1, (int) Math.ceil(centre[0]+radius));
+            int yStart=Math.max(0, (int) Math.floor(centre[1]-radius)), yEnd=Math.min(height-1, (int) Math.ceil(centre[1]+radius));
+            for (int y=yStart; y<=yEnd; y++){
+                for (int x=xStart; x<=xEnd; x++){
+                    float value=pixels[x+y*width];
+                    if (value>=threshold) addMoments(moments, x, y, value-threshold);
+                }
+            }
+            if (moments[0]<=0) break;
+            double[] previous=centre;
+            centre=getCentroid(moments, centre[0], centre[1]);
+            if (Math.abs(centre[0]-previous[0])<0.001 && Math.abs(centre[1]-previous[1])<0.001) break;
+        }
+
+        return new double[]{centre[0], centre[1], radius};
+    }
+
+    /**
+     * Computes the threshold separating the objects from the background: a 256 bins histogram of the raw pixels (see HistogramSegmentation(ImagePlus, int))
+     * is split into 2 classes by iterative intermeans on the log of the frequencies, as done by HistogramSegmentation.calcLimits(2, maxIterations, 0, true).
+     * The search stops as soon as a class gets empty, the previous limit being kept.
+     * @param pixels the image's pixels
+     * @param width the image's width
+     * @param height the image's height
+     * @return the threshold, i.e. the lowest intensity of the upper class
+     */
+    public float getThreshold(float[] pixels, int width, int height){
+        HistogramSegmentation hs=new HistogramSegmentation(new ImagePlus("", new FloatProcessor(width, height, pixels)), N_BINS);
+        int[] histo=hs.getHisto();
+
+        int limit=(histo.length-1)/2;
+        for (int it=0; it<maxIterations; it++){
+            double[] means=new double[2];
+            int[][] ranges={{0, limit}, {limit, histo.length}};
+            boolean empty=false;
+            for (int c=0; c<2; c++){
+                double freq=0, mean=0;
+                for (int j=ranges[c][0]; j<ranges[c][1]; j++){
+                    double val=histo[j]!=0?Math.log(histo[j]):0;
+                    freq+=val;
+                    mean+=val*j;
+                }
+                if (freq==0) empty=true;
+                means[c]=mean/freq;
+            }
+            if (empty) break;
+            int newLimit=(int) Math.floor((means[0]+means[1])/2);
+            if (newLimit==limit) break;
+            limit=newLimit;
+        }
+        return (float) hs.getValue(limit);
+    }
+
+    private static void addMoments(double[] moments, int x, int y, double weight){
+        moments[0]+=weight;
+        moments[1]+=weight*x;
+        moments[2]+=weight*y;
+        moments[3]+=weight*x*x;
+        moments[4]+=weight*y*y;
+        moments[5]+=weight*x*y;
+    }
+
+    /**
+     * Returns the centroid described by the moments, or the default position if the moments are empty
+     */
+    private static double[] getCentroid(double[] moments, double xDefault, double yDefault){
+        if (moments[0]<=0) return new double[]{xDefault, yDefault};
+        return new double[]{moments[1]/moments[0], moments[2]/moments[0]};
+    }
+
+    /**
+     * Returns the radius of the refinement window: 3 times the largest standard deviation described by the moments, at least 2 pixels
+     */
+    private static double getRadius(double[] moments){
+        if (moments[0]<=0) return 2;
+        double xMean=moments[1]/moments[0], yMean=moments[2]/moments[0];
+        double xVar=moments[3]/moments[0]-xMean*xMean, yVar=moments[4]/moments[0]-yMean*yMean;
+        return Math.max(2, 3*Math.sqrt(Math.max(0, Math.max(xVar, yVar))));
     }
 }
@@ -24,12 +24,35 @@
 package metroloJ.utilities;
 
 import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.RecursiveTask;
+import metroloJ.utilities.tricks.stackTricks;
+import metroloJ.utilities.tricks.threadTricks;
 
 /**
  * findMax is to be used to retrieve the coordinates. Coordinates are uncalibrated.
  * @author fab
  */
 public class findMax {
+    /** No sub-pixel refinement: the integer coordinates of the maximum are used **/
+    public static final int NONE=0;
+
+    /** Sub-pixel refinement using the background-subtracted intensity centroid of a small window around the maximum **/
+    public static final int CENTROID=1;
+
+    /** Sub-pixel refinement fitting a parabola, independently along each axis, to the maximum and its two neighbours **/
+    public static final int PARABOLIC=2;
+
+    /** Sub-pixel refinement fitting a Gaussian, independently along each axis, to the maximum and its two neighbours (parabola on log intensities) **/
+    public static final int GAUSSIAN=3;
+
+    /** Names of the sub-pixel refinement methods, in the same order as their references **/
+    public static final String[] SUBPIXEL_METHODS={"None", "Centroid", "Parabolic", "Gaussian"};
+
     /**
      *Starts the process of creation of a new findMax object
      */
@@ -48,35 +71,321 @@ public class findMax {
         if (ip.getNSlices()==1){
             coord=get2DCenter(ip);
         }else{
-            int[] coord2D=get2DCenter(new sideViewGenerator().getXYview(ip, sideViewGenerator.MAX_METHOD));
-            coord=new int[3];
-            coord[0]=coord2D[0];
-            coord[1]=coord2D[1];
-            coord[2]=getZmax(ip, coord[0], coord[1]);
+            coord=get3DMax(ip);
         }
         return coord;
     }
 
     /**
-     * Retrieves the x and y coordinates of the maximum intensity pixel on the current ImagePlus, on the current slice
-     * @param ip ImagePlus on which to find the maximum
-     * @return an array of integer of size 2. x coordinate will be found within the array at index 0, y at index 1.
+     * Retrieves the coordinates of the maximum intensity voxel in a single pass over the stack's pixel arrays (8-, 16- or 32-bits),
+     * slices being split between threads. Should several voxels carry the maximum intensity, the first one in raster order (y, then x) is retained
+     * and, for this xy position, the first slice, as would be found on the maximum intensity projection.
+     * Virtual stacks are streamed instead (see stackStreamer), each plane being read once and only two planes being held in memory.
+     * @param ip ImagePlus on which to find the maximum (single channel, single time point)
+     * @return an array of integer of size 3: x coordinate at index 0, y at index 1 and z (slice number, starting from 1) at index 2
      */
-    public int[] get2DCenter(ImagePlus ip){
-        int max=0;
-        int[] coord=new int[2];
+    public int[] get3DMax(ImagePlus ip){
+        checkNotHyperstack(ip);
+        ImageStack is=ip.getStack();
+        if (is.isVirtual()) return new stackStreamer(is, sideViewGenerator.MAX_METHOD, new boolean[]{false, false, false}).getMaxCoordinates();
+        double[] max=threadTricks.getPool().invoke(new maxTask(is, 1, is.getSize()+1));
+        int index=(int) max[1];
+        return new int[]{index%ip.getWidth(), index/ip.getWidth(), (int) max[2]};
+    }
 
-        for (int y=0; y<ip.getHeight(); y++){
-            for (int x=0; x<ip.getWidth(); x++){
-                int currVal=ip.getProcessor().getPixel(x, y);
+    /**
+     * Checks that all slices of the ImagePlus' stack are z slices: slices are read straight from the stack, which would
+     * interleave channels and time points on a hyperstack
+     * @param ip the ImagePlus to check
+     */
+    private static void checkNotHyperstack(ImagePlus ip){
+        if (ip.getStackSize()!=ip.getNSlices()) throw new IllegalArgumentException("findMax requieres a single channel, single time point ImagePlus");
+    }
+
+    /**
+     * Retrieves the maximum of a 8-, 16- or 32-bits pixel array and the index where it is first found
+     * @param pixels the pixel array
+     * @return a double array containing the maximum at index 0 and its position within the array at index 1
+     */
+    private static double[] getSliceMax(Object pixels){
+        float max=Float.NEGATIVE_INFINITY;
+        int index=0;
+        if (pixels instanceof byte[]){
+            byte[] pix=(byte[]) pixels;
+            for (int i=0; i<pix.length; i++){
+                int currVal=pix[i]&0xff;
+                if (currVal>max){
+                    max=currVal;
+                    index=i;
+                }
+            }
+        }else if (pixels instanceof short[]){
+            short[] pix=(short[]) pixels;
+            for (int i=0; i<pix.length; i++){
+                int currVal=pix[i]&0xffff;
                 if (currVal>max){
-                    coord[0]=x;
-                    coord[1]=y;
                     max=currVal;
+                    index=i;
                 }
             }
+        }else if (pixels instanceof float[]){
+            float[] pix=(float[]) pixels;
+            for (int i=0; i<pix.length; i++){
+                if (pix[i]>max){
+                    max=pix[i];
+                    index=i;
+                }
+            }
+        }else{
+            throw new IllegalArgumentException("findMax expects a 8-, 16- or 32-bits ImagePlus");
         }
-        return coord;
+        return new double[]{max, index};
+    }
+
+    /**
+     * Retrieves the maximum over a range of slices, splitting the range in halves down to a single slice.
+     * Returns a double array containing the maximum, its position within the slice and the slice number.
+     */
+    private static class maxTask extends RecursiveTask<double[]> {
+        private static final long serialVersionUID=1L;
+
+        ImageStack is;
+        int start, end;
+
+        maxTask(ImageStack is, int start, int end){
+            this.is=is;
+            this.start=start;
+            this.end=end;
+        }
+
+        @Override
+        protected double[] compute(){
+            if (end-start<=1){
+                double[] max=getSliceMax(is.getPixels(start));
+                return new double[]{max[0], max[1], start};
+            }
+            int middle=(start+end)/2;
+            maxTask first=new maxTask(is, start, middle);
+            first.fork();
+            double[] second=new maxTask(is, middle, end).compute();
+            double[] max=first.join();
+
+            //Ties are broken using the position within the slice, then the slice number
+            if (second[0]>max[0] || (second[0]==max[0] && (second[1]<max[1] || (second[1]==max[1] && second[2]<max[2])))) max=second;
+            return max;
+        }
+    }
+
+    /**
+     * Retrieves the coordinates of all local maxima of intensity (i.e. beads) found within the ImagePlus.
+     * The stack is read only once: the maximum intensity projection and the slice where each projected pixel was found are built in the same pass.
+     * Local maxima are then searched on the projection, above threshold, and sorted from brightest to dimmest. A maximum closer than
+     * minDist (along x or y) to a brighter one is discarded.
+     * @param ip ImagePlus on which to find the maxima (8-, 16- or 32-bits, single channel, single time point)
+     * @param threshold minimum intensity for a local maximum to be retained. If NaN, the threshold is set to the projection's mean plus 20% of the mean-max range
+     * @param minDist minimum distance, in pixels, between two retained maxima
+     * @param excludeEdges true to discard maxima found closer than minDist from the image's borders
+     * @return an array of integer arrays of size 3, x coordinate being at index 0, y at index 1 and z (slice number, starting from 1) at index 2
+     */
+    public int[][] getAllMaxima(ImagePlus ip, double threshold, int minDist, boolean excludeEdges){
+        checkNotHyperstack(ip);
+        int w=ip.getWidth();
+        int h=ip.getHeight();
+        ImageStack is=ip.getStack();
+
+        float[] proj=new float[w*h];
+        int[] zProj=new int[w*h];
+        Arrays.fill(proj, -Float.MAX_VALUE);
+
+        for (int z=1; z<=is.getSize(); z++){
+            Object pixels=is.getPixels(z);
+            if (pixels instanceof byte[]){
+                byte[] pix=(byte[]) pixels;
+                for (int i=0; i<pix.length; i++){
+                    float currVal=pix[i]&0xff;
+                    if (currVal>proj[i]){
+                        proj[i]=currVal;
+                        zProj[i]=z;
+                    }
+                }
+            }else if (pixels instanceof short[]){
+                short[] pix=(short[]) pixels;
+                for (int i=0; i<pix.length; i++){
+                    float currVal=pix[i]&0xffff;
+                    if (currVal>proj[i]){
+                        proj[i]=currVal;
+                        zProj[i]=z;
+                    }
+                }
+            }else if (pixels instanceof float[]){
+                float[] pix=(float[]) pixels;
+                for (int i=0; i<pix.length; i++){
+                    if (pix[i]>proj[i]){
+                        proj[i]=pix[i];
+                        zProj[i]=z;
+                    }
+                }
+            }else{
+                throw new IllegalArgumentException("findMax expects a 8-, 16- or 32-bits ImagePlus");
+            }
+        }
+
+        if (Double.isNaN(threshold)){
+            double mean=0, max=-Float.MAX_VALUE;
+            for (int i=0; i<proj.length; i++){
+                mean+=proj[i];
+                max=Math.max(max, proj[i]);
+            }
+            mean/=proj.length;
+            threshold=mean+0.2*(max-mean);
+        }
+
+        //Retrieves all local maxima above threshold (3x3 neighbourhood)
+        ArrayList<int[]> candidates=new ArrayList<int[]>();
+        for (int y=0; y<h; y++){
+            for (int x=0; x<w; x++){
+                float currVal=proj[x+y*w];
+                if (currVal<threshold) continue;
+                boolean isMax=true;
+                for (int j=Math.max(0, y-1); j<=Math.min(h-1, y+1) && isMax; j++){
+                    for (int i=Math.max(0, x-1); i<=Math.min(w-1, x+1); i++){
+                        int index=i+j*w;
+                        //Neighbours already visited should be strictly lower to deal with plateaus
+                        if (proj[index]>currVal || (index<x+y*w && proj[index]==currVal)){
+                            isMax=false;
+                            break;
+                        }
+                    }
+                }
+                if (isMax) candidates.add(new int[]{x, y, zProj[x+y*w]});
+            }
+        }
+
+        final float[] values=proj;
+        final int width=w;
+        Collections.sort(candidates, new Comparator<int[]>(){
+            public int compare(int[] a, int[] b){
+                return Float.compare(values[b[0]+b[1]*width], values[a[0]+a[1]*width]);
+            }
+        });
+
+        //Keeps the brightest maximum within each minDist neighbourhood
+        ArrayList<int[]> maxima=new ArrayList<int[]>();
+        for (int[] candidate:candidates){
+            boolean keep=true;
+            for (int[] max:maxima){
+                if (Math.abs(max[0]-candidate[0])<=minDist && Math.abs(max[1]-candidate[1])<=minDist){
+                    keep=false;
+                    break;
+                }
+            }
+            if (keep) maxima.add(candidate);
+        }
+
+        if (excludeEdges){
+            for (int i=maxima.size()-1; i>=0; i--){
+                int[] max=maxima.get(i);
+                if (max[0]<minDist || max[1]<minDist || max[0]>=w-minDist || max[1]>=h-minDist) maxima.remove(i);
+            }
+        }
+
+        return maxima.toArray(new int[maxima.size()][]);
+    }
+
+    /**
+     * Refines the coordinates of a maximum to sub-pixel precision. Only the pixels from a small window around the maximum are read,
+     * so that the cost does not depend on the image's size.
+     * @param is the stack on which the maximum has been found
+     * @param coord the integer coordinates of the maximum, x at index 0, y at index 1 and z (slice number, starting from 1) at index 2
+     * @param method the refinement method (NONE, CENTROID, PARABOLIC or GAUSSIAN)
+     * @param radius half-size, in pixels, of the window used by the CENTROID method
+     * @return a double array of size 3 containing the refined x, y and z (slice number, starting from 1) coordinates
+     */
+    public double[] getSubPixelCoordinates(ImageStack is, int[] coord, int method, int radius){
+        double[] out={coord[0], coord[1], coord[2]};
+        switch (method){
+            case CENTROID: return getCentroid(is, coord, radius);
+            case PARABOLIC:
+            case GAUSSIAN:
+                int w=is.getWidth();
+                int h=is.getHeight();
+                int index=coord[0]+coord[1]*w;
+                Object pixels=is.getPixels(coord[2]);
+                float centre=stackTricks.getValue(pixels, index);
+                if (coord[0]>0 && coord[0]<w-1) out[0]+=getPeakOffset(stackTricks.getValue(pixels, index-1), centre, stackTricks.getValue(pixels, index+1), method);
+                if (coord[1]>0 && coord[1]<h-1) out[1]+=getPeakOffset(stackTricks.getValue(pixels, index-w), centre, stackTricks.getValue(pixels, index+w), method);
+                if (coord[2]>1 && coord[2]<is.getSize()) out[2]+=getPeakOffset(stackTricks.getValue(is.getPixels(coord[2]-1), index), centre, stackTricks.getValue(is.getPixels(coord[2]+1), index), method);
+                return out;
+            default: return out;
+        }
+    }
+
+    /**
+     * Calculates the position of the apex of the parabola going through three equally spaced points, relative to the central one
+     * @param before intensity of the previous point
+     * @param centre intensity of the central point
+     * @param after intensity of the next point
+     * @param method PARABOLIC to fit on raw intensities, GAUSSIAN to fit on their logarithm (falls back to PARABOLIC when an intensity is not strictly positive)
+     * @return the offset, between -0.5 and 0.5
+     */
+    private double getPeakOffset(double before, double centre, double after, int method){
+        if (method==GAUSSIAN && before>0 && centre>0 && after>0){
+            before=Math.log(before);
+            centre=Math.log(centre);
+            after=Math.log(after);
+        }
+        double denom=before-2*centre+after;
+        if (denom>=0) return 0;
+        return Math.max(-0.5, Math.min(0.5, 0.5*(before-after)/denom));
+    }
+
+    /**
+     * Calculates the intensity centroid of a (2*radius+1)^3 window centred on the maximum, clipped to the stack's borders.
+     * The window's minimum is subtracted from all intensities before weighting.
+     * @param is the stack on which the maximum has been found
+     * @param coord the integer coordinates of the maximum, x at index 0, y at index 1 and z (slice number, starting from 1) at index 2
+     * @param radius half-size of the window, in pixels
+     * @return a double array of size 3 containing the centroid's x, y and z (slice number, starting from 1) coordinates
+     */
+    private double[] getCentroid(ImageStack is, int[] coord, int radius){
+        int w=is.getWidth();
+        int xStart=Math.max(0, coord[0]-radius), xEnd=Math.min(w-1, coord[0]+radius);
+        int yStart=Math.max(0, coord[1]-radius), yEnd=Math.min(is.getHeight()-1, coord[1]+radius);
+        int zStart=Math.max(1, coord[2]-radius), zEnd=Math.min(is.getSize(), coord[2]+radius);
+
+        float min=Float.MAX_VALUE;
+        for (int z=zStart; z<=zEnd; z++){
+            Object pixels=is.getPixels(z);
+            for (int y=yStart; y<=yEnd; y++){
+                for (int x=xStart; x<=xEnd; x++) min=Math.min(min, stackTricks.getValue(pixels, x+y*w));
+            }
+        }
+
+        double sum=0, sumX=0, sumY=0, sumZ=0;
+        for (int z=zStart; z<=zEnd; z++){
+            Object pixels=is.getPixels(z);
+            for (int y=yStart; y<=yEnd; y++){
+                for (int x=xStart; x<=xEnd; x++){
+                    double currVal=stackTricks.getValue(pixels, x+y*w)-min;
+                    sum+=currVal;
+                    sumX+=currVal*x;
+                    sumY+=currVal*y;
+                    sumZ+=currVal*z;
+                }
+            }
+        }
+        if (sum==0) return new double[]{coord[0], coord[1], coord[2]};
+        return new double[]{sumX/sum, sumY/sum, sumZ/sum};
+    }
+
+    /**
+     * Retrieves the x and y coordinates of the maximum intensity pixel on the current ImagePlus, on the current slice
+     * @param ip ImagePlus on which to find the maximum
+     * @return an array of integer of size 2. x coordinate will be found within the array at index 0, y at index 1.
+     */
+    public int[] get2DCenter(ImagePlus ip){
+        int index=(int) getSliceMax(ip.getProcessor().getPixels())[1];
+        return new int[]{index%ip.getWidth(), index/ip.getWidth()};
     }
 
     /**
@@ -86,11 +395,12 @@ public class findMax {
      * @return an Integer carrying the x coordinate found
      */
     public int getXmax(ImagePlus ip, int yPos){
-        int max=0;
+        float max=0;
         int coord=0;
+        Object pixels=ip.getProcessor().getPixels();
 
         for (int x=0; x<ip.getWidth(); x++){
-            int currVal=ip.getProcessor().getPixel(x, yPos);
+            float currVal=stackTricks.getValue(pixels, x+yPos*ip.getWidth());
             if (currVal>max){
                 coord=x;
                 max=currVal;
@@ -106,11 +416,12 @@ public class findMax {
      * @return an Integer carrying the y coordinate found
      */
     public int getYmax(ImagePlus ip, int xPos){
-        int max=0;
+        float max=0;
         int coord=0;
+        Object pixels=ip.getProcessor().getPixels();
 
         for (int y=0; y<ip.getHeight(); y++){
-            int currVal=ip.getProcessor().getPixel(xPos, y);
+            float currVal=stackTricks.getValue(pixels, xPos+y*ip.getWidth());
             if (currVal>max){
                 coord=y;
                 max=currVal;
@@ -128,12 +439,12 @@ public class findMax {
      * @return an Integer carrying the z coordinate found
      */
     public int getZmax(ImagePlus ip, int xPos, int yPos){
-        int max=0;
+        float max=0;
         int coord=1;
+        ImageStack is=ip.getStack();
 
-        for (int z=1; z<=ip.getNSlices(); z++){
-            ip.setSlice(z);
-            int currVal=ip.getProcessor().getPixel(xPos, yPos);
+        for (int z=1; z<=is.getSize(); z++){
+            float currVal=stackTricks.getValue(is.getPixels(z), xPos+yPos*ip.getWidth());
             if (currVal>max){
                 coord=z;
                 max=currVal;
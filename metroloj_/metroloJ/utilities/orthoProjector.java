@@ -0,0 +1,712 @@
+/**
+ *
+ *  orthoProjector v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package metroloJ.utilities;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import metroloJ.utilities.tricks.threadTricks;
+
+/**
+ * orthoProjector computes the XY, XZ and YZ projections of a stack in a single pass over its pixel arrays, without any reslicing.
+ * Supported projections are AVG_METHOD, MAX_METHOD, MIN_METHOD, SUM_METHOD, SD_METHOD and MEDIAN_METHOD, as defined in sideViewGenerator.
+ * Outputs follow the conventions of ImageJ's ZProjector: MAX_METHOD, MIN_METHOD and AVG_METHOD keep the stack's type, as does MEDIAN_METHOD
+ * for 8-bits stacks, the others are 32-bits.
+ * The XY view is width x height, the XZ view width x depth and the YZ view height x depth (y along the rows).
+ * The image is split into bands of rows (or of slices for the MEDIAN_METHOD XZ and YZ views) processed in parallel.
+ * Medians of 8- and 16-bits stacks are found by counting, without sorting the projected values.
+ * @author agent
+ */
+public class orthoProjector {
+    public static final int XY=0;
+    public static final int XZ=1;
+    public static final int YZ=2;
+
+    /** Number of bands per thread the image is split into **/
+    private static final int BANDS_PER_THREAD=4;
+
+    ImageStack is;
+    Object[] slices;
+    int w, h, d, bitDepth, projType;
+    boolean doXY, doXZ, doYZ, extremum, max, sd, integer;
+
+    /** Ratios between the output and the original number of rows of the XZ and YZ views **/
+    double xzRatio=1, yzRatio=1;
+
+    /** Extrema are stored as floats, sums as doubles (along with sums of squares for SD_METHOD) **/
+    float[] xyExt, xzExt, yzExt;
+    double[] xySum, xzSum, yzSum, xySum2, xzSum2, yzSum2;
+
+    /** Medians are directly stored as floats **/
+    float[] xyMed, xzMed, yzMed;
+
+    /**
+     * Tells whether a projection type/stack type can be handled by the projector
+     * @param is the input ImageStack
+     * @param projType projection type as an integer
+     * @return true if supported (8-, 16- or 32-bits stacks)
+     */
+    public static boolean isSupported(ImageStack is, int projType){
+        Object pixels=is.getPixels(1);
+        boolean supportedType=pixels instanceof byte[] || pixels instanceof short[] || pixels instanceof float[];
+        return supportedType && projType>=sideViewGenerator.AVG_METHOD && projType<=sideViewGenerator.MEDIAN_METHOD;
+    }
+
+    /**
+     * Computes the requested projections of the stack, reading each slice only once. Virtual stacks are streamed
+     * plane by plane (see stackStreamer), except for the MEDIAN_METHOD, which requires all planes.
+     * The XZ and YZ views may be stretched along z, to account for the disparity of calibration between XY and Z:
+     * their rows are then interpolated from the projection's accumulators, as done by ImageProcessor.resize, the output being the only
+     * image allocated per view. MEDIAN_METHOD views, and views shared with the projectionCache, are built at native z sampling first.
+     * @param is the input ImageStack
+     * @param projType projection type as an integer (see isSupported)
+     * @param views a 3 elements array, telling whether the XY, XZ and YZ views should be computed
+     * @param xzRatio ratio between the output and the original number of rows of the XZ view (i.e. pixelDepth/pixelWidth), 1 to keep the native sampling
+     * @param yzRatio ratio between the output and the original number of rows of the YZ view (i.e. pixelDepth/pixelHeight), 1 to keep the native sampling
+     * @return an array of 3 ImageProcessors containing the XY, XZ and YZ views (null for views that were not requested)
+     */
+    public static ImageProcessor[] project(ImageStack is, int projType, boolean[] views, double xzRatio, double yzRatio){
+        ImageProcessor[] proj=projectionCache.get(is, projType, views);
+        if (proj==null && !projectionCache.isEnabled()){
+            //Nothing is shared: the views are handed out as computed
+            if (is.isVirtual() && projType!=sideViewGenerator.MEDIAN_METHOD) return new stackStreamer(is, projType, views).getViews(xzRatio, yzRatio);
+            return new orthoProjector(is, projType, views, xzRatio, yzRatio).getViews();
+        }
+
+        if (proj==null){
+            //As the three views cost a single pass, they are all computed and cached, except for the MEDIAN_METHOD
+            boolean[] computed=projType==sideViewGenerator.MEDIAN_METHOD?views:new boolean[]{true, true, true};
+            if (is.isVirtual() && projType!=sideViewGenerator.MEDIAN_METHOD){
+                proj=new stackStreamer(is, projType, computed).getViews();
+            }else{
+                proj=new orthoProjector(is, projType, computed, 1, 1).getViews();
+            }
+            projectionCache.put(is, projType, proj);
+        }
+
+        //Views shared with the cache are copied (or stretched, which allocates the output)
+        ImageProcessor[] out=new ImageProcessor[3];
+        if (views[XY]) out[XY]=proj[XY].duplicate();
+        if (views[XZ]) out[XZ]=copy(proj[XZ], xzRatio);
+        if (views[YZ]) out[YZ]=copy(proj[YZ], yzRatio);
+        return out;
+    }
+
+    /**
+     * Computes the requested projections of the stack, reading each slice only once. Virtual stacks are streamed
+     * plane by plane (see stackStreamer), except for the MEDIAN_METHOD, which requires all planes.
+     * @param is the input ImageStack
+     * @param projType projection type as an integer (see isSupported)
+     * @param views a 3 elements array, telling whether the XY, XZ and YZ views should be computed
+     * @return an array of 3 ImageProcessors containing the XY, XZ and YZ views (null for views that were not requested)
+     */
+    public static ImageProcessor[] project(ImageStack is, int projType, boolean[] views){
+        return project(is, projType, views, 1, 1);
+    }
+
+    /**
+     * Computes the three projections of the stack, reading each slice only once
+     * @param is the input ImageStack
+     * @param projType projection type as an integer (see isSupported)
+     * @return an array of 3 ImageProcessors containing the XY, XZ and YZ views
+     */
+    public static ImageProcessor[] project(ImageStack is, int projType){
+        return project(is, projType, new boolean[]{true, true, true});
+    }
+
+    /**
+     * Returns a new ImageProcessor holding a side view, stretched along its rows
+     * @param iproc the side view, rows corresponding to slices
+     * @param ratio ratio between the output and the original number of rows
+     * @return a new ImageProcessor, never the input one
+     */
+    private static ImageProcessor copy(ImageProcessor iproc, double ratio){
+        ImageProcessor out=stretch(iproc, ratio);
+        return out==iproc?iproc.duplicate():out;
+    }
+
+    /**
+     * Stretches a side view along its rows using bilinear interpolation, following ImageProcessor.resize. The output
+     * is the only image allocated.
+     * @param iproc the side view, rows corresponding to slices
+     * @param ratio ratio between the output and the original number of rows
+     * @return a new ImageProcessor, of the same type as the input, (int) (height*ratio) rows high, or the input itself if the number of rows is unchanged
+     */
+    static ImageProcessor stretch(ImageProcessor iproc, double ratio){
+        int width=iproc.getWidth();
+        int height=iproc.getHeight();
+        int dstHeight=(int) (height*ratio);
+        if (dstHeight==height) return iproc;
+
+        ImageProcessor out=iproc.createProcessor(width, dstHeight);
+        boolean round=!(iproc instanceof FloatProcessor);
+        for (int y=0; y<dstHeight; y++){
+            double ys=getSourceRow(y, height, dstHeight);
+            int base=(int) ys;
+            int next=Math.min(height-1, base+1);
+            double fraction=ys-base;
+            for (int x=0; x<width; x++){
+                double low=iproc.getf(x+base*width);
+                double high=iproc.getf(x+next*width);
+                double value=low+fraction*(high-low);
+                out.setf(x+y*width, round?(int) (value+0.5):(float) value);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Returns the position, within the original rows, an output row is interpolated from when stretching, following ImageProcessor.resize
+     * @param y the output row
+     * @param height the original number of rows
+     * @param dstHeight the output number of rows
+     * @return the position of the source row, between 0 and height-1
+     */
+    private static double getSourceRow(int y, int height, int dstHeight){
+        double yScale=(double) dstHeight/height;
+        double ys=(y-(dstHeight/2.0+yScale/4.0))/yScale+height/2.0;
+        if (ys<0.0) ys=0.0;
+        if (ys>=height-1.0) ys=height-1.001;
+        return Math.max(0, ys);
+    }
+
+    orthoProjector(ImageStack is, int projType, boolean[] views, double xzRatio, double yzRatio){
+        this.is=is;
+        this.xzRatio=xzRatio;
+        this.yzRatio=yzRatio;
+        this.projType=projType;
+        w=is.getWidth();
+        h=is.getHeight();
+        d=is.getSize();
+        doXY=views[XY];
+        doXZ=views[XZ];
+        doYZ=views[YZ];
+        max=projType==sideViewGenerator.MAX_METHOD;
+        extremum=max || projType==sideViewGenerator.MIN_METHOD;
+        sd=projType==sideViewGenerator.SD_METHOD;
+        bitDepth=getBitDepth(is);
+        integer=bitDepth!=32;
+    }
+
+    /**
+     * Runs the projections on the in-memory stack and builds the output ImageProcessors
+     * @return an array of 3 ImageProcessors containing the XY, XZ and YZ views (null for views that were not requested)
+     */
+    private ImageProcessor[] getViews(){
+        int nThreads=threadTricks.getPool().getParallelism();
+        slices=new Object[d];
+        for (int z=0; z<d; z++) slices[z]=is.getPixels(z+1);
+
+        if (projType==sideViewGenerator.MEDIAN_METHOD){
+            if (doXY) xyMed=new float[w*h];
+            if (doXZ) xzMed=new float[w*d];
+            if (doYZ) yzMed=new float[h*d];
+            if (doXY) threadTricks.getPool().invoke(new xyMedianTask(0, h, bandSize(h, nThreads)));
+            if (doXZ || doYZ) threadTricks.getPool().invoke(new sideMedianTask(0, d, bandSize(d, nThreads)));
+        }else{
+            allocate();
+            threadTricks.getPool().invoke(new bandTask(0, h, bandSize(h, nThreads)));
+        }
+        return buildViews();
+    }
+
+    /**
+     * Returns the bit depth of a stack, reading its first plane if it is not known yet (virtual stacks)
+     * @param is the input ImageStack
+     * @return 8, 16, 24 or 32
+     */
+    static int getBitDepth(ImageStack is){
+        int bitDepth=is.getBitDepth();
+        if (bitDepth!=0) return bitDepth;
+        Object pixels=is.getPixels(1);
+        if (pixels instanceof byte[]) return 8;
+        if (pixels instanceof short[]) return 16;
+        if (pixels instanceof int[]) return 24;
+        return 32;
+    }
+
+    /**
+     * Allocates the buffers where extrema or sums are accumulated
+     */
+    void allocate(){
+        if (extremum){
+            float init=max?Float.NEGATIVE_INFINITY:Float.POSITIVE_INFINITY;
+            if (doXY) xyExt=filled(w*h, init);
+            if (doXZ) xzExt=filled(w*d, init);
+            if (doYZ) yzExt=filled(h*d, init);
+        }else{
+            if (doXY) xySum=new double[w*h];
+            if (doXZ) xzSum=new double[w*d];
+            if (doYZ) yzSum=new double[h*d];
+            if (sd){
+                if (doXY) xySum2=new double[w*h];
+                if (doXZ) xzSum2=new double[w*d];
+                if (doYZ) yzSum2=new double[h*d];
+            }
+        }
+    }
+
+    /**
+     * Accumulates the extrema or sums of a single plane, once allocate has been called
+     * @param pixels the plane's pixel array
+     * @param z the plane's index, starting from 0
+     */
+    void addPlane(Object pixels, int z){
+        float[] row=new float[w];
+        for (int y=0; y<h; y++){
+            getRow(pixels, y*w, row);
+            if (extremum){
+                float rowExt=max?maxRow(row, xyExt, y*w, xzExt, z*w):minRow(row, xyExt, y*w, xzExt, z*w);
+                if (doYZ) yzExt[y+z*h]=rowExt;
+            }else{
+                double rowSum=sumRow(row, false, xySum, y*w, xzSum, z*w);
+                if (doYZ) yzSum[y+z*h]=rowSum;
+                if (sd){
+                    double rowSum2=sumRow(row, true, xySum2, y*w, xzSum2, z*w);
+                    if (doYZ) yzSum2[y+z*h]=rowSum2;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the output ImageProcessors from the accumulated values
+     * @return an array of 3 ImageProcessors containing the XY, XZ and YZ views (null for views that were not requested)
+     */
+    ImageProcessor[] buildViews(){
+        ImageProcessor[] out=new ImageProcessor[3];
+
+        switch (projType){
+            case sideViewGenerator.MAX_METHOD:
+            case sideViewGenerator.MIN_METHOD:
+                if (doXY) out[XY]=toProcessor(xyExt, w, h, bitDepth);
+                if (doXZ) out[XZ]=getSideView(XZ);
+                if (doYZ) out[YZ]=getSideView(YZ);
+                for (ImageProcessor iproc:out) if (iproc!=null) iproc.setColorModel(is.getColorModel());
+                break;
+
+            case sideViewGenerator.MEDIAN_METHOD:
+                if (doXY) out[XY]=new FloatProcessor(w, h, xyMed, null);
+                if (doXZ) out[XZ]=new FloatProcessor(w, d, xzMed, null);
+                if (doYZ) out[YZ]=new FloatProcessor(h, d, yzMed, null);
+                if (bitDepth==8) for (int i=0; i<out.length; i++) if (out[i]!=null) out[i]=out[i].convertToByte(false);
+                if (doXZ) out[XZ]=stretch(out[XZ], xzRatio);
+                if (doYZ) out[YZ]=stretch(out[YZ], yzRatio);
+                break;
+
+            default:
+                if (doXY){
+                    out[XY]=toProcessor(xySum, xySum2, d, w, h, projType);
+                    if (projType==sideViewGenerator.AVG_METHOD && bitDepth==8) out[XY]=out[XY].convertToByte(false);
+                    if (projType==sideViewGenerator.AVG_METHOD && bitDepth==16) out[XY]=out[XY].convertToShort(false);
+                }
+                if (doXZ) out[XZ]=getSideView(XZ);
+                if (doYZ) out[YZ]=getSideView(YZ);
+                break;
+        }
+        for (ImageProcessor iproc:out) if (iproc!=null) iproc.resetMinAndMax();
+        return out;
+    }
+
+    /**
+     * Builds the XZ or YZ view of a MAX_METHOD, MIN_METHOD, AVG_METHOD, SUM_METHOD or SD_METHOD projection, directly at its output
+     * sampling: each output row is interpolated from the accumulated values, as stretch would do on the view at native z sampling.
+     * @param view XZ or YZ
+     * @return a new ImageProcessor, (int) (depth*ratio) rows high, 8- or 16-bits for MAX_METHOD, MIN_METHOD and AVG_METHOD on integer stacks, 32-bits otherwise
+     */
+    private ImageProcessor getSideView(int view){
+        int width=view==XZ?w:h;
+        int dstHeight=(int) (d*(view==XZ?xzRatio:yzRatio));
+        boolean keepType=extremum || projType==sideViewGenerator.AVG_METHOD;
+        ImageProcessor out;
+        if (keepType && bitDepth==8){
+            out=new ByteProcessor(width, dstHeight);
+        }else if (keepType && bitDepth==16){
+            out=new ShortProcessor(width, dstHeight);
+        }else{
+            out=new FloatProcessor(width, dstHeight);
+        }
+        boolean round=!(out instanceof FloatProcessor);
+
+        for (int y=0; y<dstHeight; y++){
+            int base=y, next=y;
+            double fraction=0;
+            if (dstHeight!=d){
+                double ys=getSourceRow(y, d, dstHeight);
+                base=(int) ys;
+                next=Math.min(d-1, base+1);
+                fraction=ys-base;
+            }
+            for (int x=0; x<width; x++){
+                double low=getNativeValue(view, x+base*width);
+                double high=fraction==0?low:getNativeValue(view, x+next*width);
+                double value=low+fraction*(high-low);
+                out.setf(x+y*width, round?(int) (value+0.5):(float) value);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Returns the value of a pixel of the XZ or YZ view at native z sampling, as toProcessor and the conversion to the stack's type would give it
+     * @param view XZ or YZ
+     * @param index index of the pixel within the view
+     * @return the pixel's value
+     */
+    private float getNativeValue(int view, int index){
+        if (extremum) return view==XZ?xzExt[index]:yzExt[index];
+
+        double sum=view==XZ?xzSum[index]:yzSum[index];
+        int n=view==XZ?h:w;
+        switch (projType){
+            case sideViewGenerator.SUM_METHOD: return (float) sum;
+            case sideViewGenerator.AVG_METHOD:
+                float avg=(float) (sum/n);
+                return integer?(int) (avg+0.5):avg;
+            default:
+                if (n<2) return 0f;
+                double sum2=view==XZ?xzSum2[index]:yzSum2[index];
+                double var=(n*sum2-sum*sum)/n/(n-1.0);
+                return var>0?(float) Math.sqrt(var):0f;
+        }
+    }
+
+    /**
+     * Returns the size of the bands a range should be split into
+     * @param length length of the range
+     * @param nThreads number of available threads
+     * @return the band size
+     */
+    private static int bandSize(int length, int nThreads){
+        return Math.max(1, (int) Math.ceil(length/(double) (nThreads*BANDS_PER_THREAD)));
+    }
+
+    /**
+     * Accumulates the extrema or sums over a band of rows, for all slices. The XY and YZ views are directly
+     * updated, each band having its own rows. The XZ view is accumulated locally, then merged.
+     */
+    private class bandTask extends RecursiveAction {
+        private static final long serialVersionUID=1L;
+
+        int start, end, size;
+
+        bandTask(int start, int end, int size){
+            this.start=start;
+            this.end=end;
+            this.size=size;
+        }
+
+        @Override
+        protected void compute(){
+            if (end-start>size){
+                int middle=(start+end)/2;
+                invokeAll(new bandTask(start, middle, size), new bandTask(middle, end, size));
+                return;
+            }
+
+            float[] xzExtBand=null;
+            double[] xzSumBand=null, xzSum2Band=null;
+            if (doXZ){
+                if (extremum){
+                    xzExtBand=filled(w*d, max?Float.NEGATIVE_INFINITY:Float.POSITIVE_INFINITY);
+                }else{
+                    xzSumBand=new double[w*d];
+                    if (sd) xzSum2Band=new double[w*d];
+                }
+            }
+
+            float[] row=new float[w];
+            for (int z=0; z<d; z++){
+                int xzOffset=z*w;
+                for (int y=start; y<end; y++){
+                    getRow(slices[z], y*w, row);
+                    int xyOffset=y*w;
+                    if (extremum){
+                        float rowExt=max?maxRow(row, xyExt, xyOffset, xzExtBand, xzOffset):minRow(row, xyExt, xyOffset, xzExtBand, xzOffset);
+                        if (doYZ) yzExt[y+z*h]=rowExt;
+                    }else{
+                        double rowSum=sumRow(row, false, xySum, xyOffset, xzSumBand, xzOffset);
+                        if (doYZ) yzSum[y+z*h]=rowSum;
+                        if (sd){
+                            double rowSum2=sumRow(row, true, xySum2, xyOffset, xzSum2Band, xzOffset);
+                            if (doYZ) yzSum2[y+z*h]=rowSum2;
+                        }
+                    }
+                }
+            }
+
+            if (doXZ){
+                synchronized (orthoProjector.this){
+                    if (extremum){
+                        if (max){
+                            maxRow(xzExtBand, xzExt, 0, null, 0);
+                        }else{
+                            minRow(xzExtBand, xzExt, 0, null, 0);
+                        }
+                    }else{
+                        for (int i=0; i<xzSum.length; i++) xzSum[i]+=xzSumBand[i];
+                        if (sd) for (int i=0; i<xzSum2.length; i++) xzSum2[i]+=xzSum2Band[i];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the XY median over a band of rows
+     */
+    private class xyMedianTask extends RecursiveAction {
+        private static final long serialVersionUID=1L;
+
+        int start, end, size;
+
+        xyMedianTask(int start, int end, int size){
+            this.start=start;
+            this.end=end;
+            this.size=size;
+        }
+
+        @Override
+        protected void compute(){
+            if (end-start>size){
+                int middle=(start+end)/2;
+                invokeAll(new xyMedianTask(start, middle, size), new xyMedianTask(middle, end, size));
+                return;
+            }
+
+            float[][] rows=new float[d][w];
+            float[] values=new float[d];
+            int[] counts=new int[256];
+            for (int y=start; y<end; y++){
+                for (int z=0; z<d; z++) getRow(slices[z], y*w, rows[z]);
+                for (int x=0; x<w; x++){
+                    for (int z=0; z<d; z++) values[z]=rows[z][x];
+                    xyMed[x+y*w]=median(values, d, counts);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the XZ and YZ medians over a band of slices
+     */
+    private class sideMedianTask extends RecursiveAction {
+        private static final long serialVersionUID=1L;
+
+        int start, end, size;
+
+        sideMedianTask(int start, int end, int size){
+            this.start=start;
+            this.end=end;
+            this.size=size;
+        }
+
+        @Override
+        protected void compute(){
+            if (end-start>size){
+                int middle=(start+end)/2;
+                invokeAll(new sideMedianTask(start, middle, size), new sideMedianTask(middle, end, size));
+                return;
+            }
+
+            //Columns are gathered while reading the rows, so that pixels are accessed in order
+            float[][] columns=doXZ?new float[w][h]:null;
+            float[] row=new float[w];
+            float[] values=new float[w];
+            int[] counts=new int[256];
+            for (int z=start; z<end; z++){
+                for (int y=0; y<h; y++){
+                    getRow(slices[z], y*w, row);
+                    if (doXZ) for (int x=0; x<w; x++) columns[x][y]=row[x];
+                    if (doYZ){
+                        System.arraycopy(row, 0, values, 0, w);
+                        yzMed[y+z*h]=median(values, w, counts);
+                    }
+                }
+                if (doXZ) for (int x=0; x<w; x++) xzMed[x+z*w]=median(columns[x], h, counts);
+            }
+        }
+    }
+
+    /**
+     * Returns the median of values, as defined in ImageJ's ZProjector (mean of the two central values for an even number of values).
+     * 8- and 16-bits values are counted over a 256 bins histogram (two passes, on the high then low byte, for 16-bits values),
+     * 32-bits values are sorted.
+     * @param values the values (modified for 32-bits values)
+     * @param n number of values
+     * @param counts a 256 elements buffer, filled with zeros
+     * @return the median
+     */
+    private float median(float[] values, int n, int[] counts){
+        if (!integer){
+            Arrays.sort(values, 0, n);
+            return n%2==0?(values[n/2-1]+values[n/2])/2f:values[n/2];
+        }
+
+        int lowRank=(n-1)/2, highRank=n/2;
+
+        //High bytes: finds the bins holding both central values
+        int lowBin=0, highBin=0;
+        if (bitDepth==16){
+            for (int i=0; i<n; i++) counts[((int) values[i])>>8]++;
+            int cumul=0;
+            while (cumul+counts[lowBin]<=lowRank) cumul+=counts[lowBin++];
+            lowRank-=cumul;
+            highBin=lowBin;
+            while (cumul+counts[highBin]<=highRank) cumul+=counts[highBin++];
+            highRank-=cumul;
+            for (int i=0; i<n; i++) counts[((int) values[i])>>8]=0;
+        }
+
+        //Central values in different bins: the lowest is the maximum of its bin, the highest the minimum of its bin
+        if (lowBin!=highBin){
+            int low=Integer.MIN_VALUE, high=Integer.MAX_VALUE;
+            for (int i=0; i<n; i++){
+                int value=(int) values[i];
+                if (value>>8==lowBin && value>low) low=value;
+                if (value>>8==highBin && value<high) high=value;
+            }
+            return (low+high)/2f;
+        }
+
+        //Low bytes, amongst the values of the bin
+        for (int i=0; i<n; i++){
+            int value=(int) values[i];
+            if (value>>8==lowBin) counts[value&0xff]++;
+        }
+        int low=0, cumul=0;
+        while (cumul+counts[low]<=lowRank) cumul+=counts[low++];
+        int high=low;
+        while (cumul+counts[high]<=highRank) cumul+=counts[high++];
+        for (int i=0; i<n; i++) counts[((int) values[i])&0xff]=0;
+
+        return ((lowBin<<8|low)+(lowBin<<8|high))/2f;
+    }
+
+    /**
+     * Converts a row of a 8-, 16- or 32-bits pixel array to floats
+     * @param pixels the pixel array
+     * @param offset index of the row's first pixel
+     * @param row the output array, its length being the row's length
+     */
+    static void getRow(Object pixels, int offset, float[] row){
+        if (pixels instanceof byte[]){
+            byte[] pix=(byte[]) pixels;
+            for (int x=0; x<row.length; x++) row[x]=pix[offset+x]&0xff;
+        }else if (pixels instanceof short[]){
+            short[] pix=(short[]) pixels;
+            for (int x=0; x<row.length; x++) row[x]=pix[offset+x]&0xffff;
+        }else{
+            System.arraycopy((float[]) pixels, offset, row, 0, row.length);
+        }
+    }
+
+    /**
+     * Updates the XY and XZ maxima with a row of pixels (null arrays are ignored)
+     * @return the maximum of the row
+     */
+    private static float maxRow(float[] row, float[] xy, int xyOffset, float[] xz, int xzOffset){
+        float rowMax=Float.NEGATIVE_INFINITY;
+        for (int x=0; x<row.length; x++) if (row[x]>rowMax) rowMax=row[x];
+        if (xy!=null) for (int x=0; x<row.length; x++) if (row[x]>xy[xyOffset+x]) xy[xyOffset+x]=row[x];
+        if (xz!=null) for (int x=0; x<row.length; x++) if (row[x]>xz[xzOffset+x]) xz[xzOffset+x]=row[x];
+        return rowMax;
+    }
+
+    /**
+     * Updates the XY and XZ minima with a row of pixels (null arrays are ignored)
+     * @return the minimum of the row
+     */
+    private static float minRow(float[] row, float[] xy, int xyOffset, float[] xz, int xzOffset){
+        float rowMin=Float.POSITIVE_INFINITY;
+        for (int x=0; x<row.length; x++) if (row[x]<rowMin) rowMin=row[x];
+        if (xy!=null) for (int x=0; x<row.length; x++) if (row[x]<xy[xyOffset+x]) xy[xyOffset+x]=row[x];
+        if (xz!=null) for (int x=0; x<row.length; x++) if (row[x]<xz[xzOffset+x]) xz[xzOffset+x]=row[x];
+        return rowMin;
+    }
+
+    /**
+     * Adds a row of pixels (or of their squares) to the XY and XZ sums (null arrays are ignored)
+     * @return the sum of the row
+     */
+    private static double sumRow(float[] row, boolean squared, double[] xy, int xyOffset, double[] xz, int xzOffset){
+        double rowSum=0;
+        for (int x=0; x<row.length; x++){
+            double v=squared?(double) row[x]*row[x]:row[x];
+            rowSum+=v;
+            if (xy!=null) xy[xyOffset+x]+=v;
+            if (xz!=null) xz[xzOffset+x]+=v;
+        }
+        return rowSum;
+    }
+
+    private static float[] filled(int length, float value){
+        float[] out=new float[length];
+        Arrays.fill(out, value);
+        return out;
+    }
+
+    /**
+     * Builds the output of a MAX_METHOD/MIN_METHOD projection, keeping the type of the stack
+     */
+    private static ImageProcessor toProcessor(float[] ext, int width, int height, int bitDepth){
+        if (bitDepth==8){
+            byte[] pixels=new byte[ext.length];
+            for (int i=0; i<ext.length; i++) pixels[i]=(byte) ext[i];
+            return new ByteProcessor(width, height, pixels, null);
+        }else if (bitDepth==16){
+            short[] pixels=new short[ext.length];
+            for (int i=0; i<ext.length; i++) pixels[i]=(short) ext[i];
+            return new ShortProcessor(width, height, pixels, null);
+        }
+        return new FloatProcessor(width, height, ext, null);
+    }
+
+    /**
+     * Builds the 32-bits output of a AVG_METHOD/SUM_METHOD/SD_METHOD projection
+     * @param sum sums of intensities
+     * @param sum2 sums of squared intensities (SD_METHOD only)
+     * @param n number of projected pixels
+     */
+    private static ImageProcessor toProcessor(double[] sum, double[] sum2, int n, int width, int height, int projType){
+        float[] pixels=new float[sum.length];
+        for (int i=0; i<sum.length; i++){
+            switch (projType){
+                case sideViewGenerator.SUM_METHOD: pixels[i]=(float) sum[i]; break;
+                case sideViewGenerator.AVG_METHOD: pixels[i]=(float) (sum[i]/n); break;
+                case sideViewGenerator.SD_METHOD:
+                    if (n>1){
+                        double var=(n*sum2[i]-sum[i]*sum[i])/n/(n-1.0);
+                        pixels[i]=var>0?(float) Math.sqrt(var):0f;
+                    }
+                    break;
+            }
+        }
+        return new FloatProcessor(width, height, pixels, null);
+    }
+}
@@ -25,6 +25,7 @@ package metroloJ.utilities;
 
 import ij.ImagePlus;
 import ij.gui.Roi;
+import ij.process.ImageProcessor;
 import java.awt.Rectangle;
 import java.util.Arrays;
 
@@ -73,23 +74,7 @@ public class proj2D {
      * @return the projection as a double array.
      */
     public double[] doProj(ImagePlus ip, int x, int y, int width, int height){
-        if (ip.getBitDepth()>16) throw new IllegalArgumentException("proj2D expects a 8- or 16-bits ImagePlus");
-        int[][] array=projAxis==X_AXIS?new int[height][width]:new int[width][height];
-
-        for (int j=y; j<y+height; j++){
-            for (int i=x; i<x+width; i++){
-                if (projAxis==X_AXIS){
-                    array[j-y][i-x]=ip.getProcessor().get(i, j);
-                }else{
-                    array[i-x][j-y]=ip.getProcessor().get(i, j);
-                }
-            }
-        }
-        double[] proj=new double[array.length];
-
-        for (int i=0; i<proj.length; i++) proj[i]=proj(array[i]);
-        array=null;
-        return proj;
+        return doProj(ip, x, y, width, height, null);
     }
     
     /**
@@ -105,30 +90,113 @@ public class proj2D {
     /**
      * Does the projection using the following arguments:
      * @param ip source ImagePlus.
-     * @param roi the ROI to be used. NB: in case of non rectangular ROIs, its bounding rectangle will be used.
+     * @param roi the ROI to be used. NB: in case of non rectangular ROIs, only the pixels within the ROI are projected.
+     * Lines of the bounding rectangle containing no pixel of the ROI are given a NaN value.
      * @return the projection as a double array.
      */
     public double[] doProj(ImagePlus ip, Roi roi){
-        return doProj(ip, roi.getBounds());
+        Rectangle rect=roi.getBounds();
+        return doProj(ip, rect.x, rect.y, rect.width, rect.height, roi.getMask());
     }
 
     /**
-     * Returns the average, maximum, minimum, sum, SD or median of an input double array.
+     * Does the projection, reading the current slice's pixel array row by row into running accumulators (one per projected line):
+     * count, sum, extrema and Welford's mean/sum of squared deviations. For MEDIAN_METHOD, the values of each line are gathered,
+     * the median being retrieved by quickselect.
+     * @param ip source ImagePlus (8-, 16- or 32-bits).
+     * @param x x coordinate of the ROI's upper left corner.
+     * @param y y coordinate of the ROI's upper left corner.
+     * @param width width of the ROI.
+     * @param height height of the ROI.
+     * @param mask the ROI's mask, of size width x height (non-zero pixels being projected), null to project the full rectangle.
+     * @return the projection as a double array.
+     */
+    private double[] doProj(ImagePlus ip, int x, int y, int width, int height, ImageProcessor mask){
+        int bitDepth=ip.getBitDepth();
+        if (bitDepth!=8 && bitDepth!=16 && bitDepth!=32) throw new IllegalArgumentException("proj2D expects a 8-, 16- or 32-bits ImagePlus");
+        Object pixels=ip.getProcessor().getPixels();
+        int nLines=projAxis==X_AXIS?height:width;
+        int lineLength=projAxis==X_AXIS?width:height;
+
+        int[] count=new int[nLines];
+        double[] sum=new double[nLines], mean=new double[nLines], m2=new double[nLines];
+        float[] max=new float[nLines], min=new float[nLines];
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        float[][] values=projType==MEDIAN_METHOD?new float[nLines][lineLength]:null;
+        boolean doSD=projType==SD_METHOD;
+
+        float[] row=new float[width];
+        for (int j=0; j<height; j++){
+            orthoProjector.getRow(pixels, (y+j)*ip.getWidth()+x, row);
+            for (int i=0; i<width; i++){
+                if (mask!=null && mask.get(i, j)==0) continue;
+                int line=projAxis==X_AXIS?j:i;
+                float value=row[i];
+                int n=++count[line];
+                sum[line]+=value;
+                if (value>max[line]) max[line]=value;
+                if (value<min[line]) min[line]=value;
+                if (doSD){
+                    double delta=value-mean[line];
+                    mean[line]+=delta/n;
+                    m2[line]+=delta*(value-mean[line]);
+                }
+                if (values!=null) values[line][n-1]=value;
+            }
+        }
+
+        double[] proj=new double[nLines];
+        for (int i=0; i<nLines; i++){
+            if (count[i]==0){
+                proj[i]=Double.NaN;
+                continue;
+            }
+            switch(projType){
+                case AVG_METHOD: proj[i]=sum[i]/count[i]; break;
+                case MAX_METHOD: proj[i]=max[i]; break;
+                case MIN_METHOD: proj[i]=min[i]; break;
+                case SUM_METHOD: proj[i]=sum[i]; break;
+                case SD_METHOD: proj[i]=Math.sqrt(m2[i]/count[i]); break;
+                case MEDIAN_METHOD: proj[i]=select(values[i], count[i], count[i]/2); break;
+                default: proj[i]=max[i]; break;
+            }
+        }
+        return proj;
+    }
+
+    /**
+     * Returns the kth smallest value among the first n elements of an array (quickselect, the array being partially reordered).
      * @param array the input array
-     * @return the calculated value as a double.
+     * @param n the number of elements to consider
+     * @param k the rank of the value to retrieve, starting from 0
+     * @return the kth smallest value.
      */
-    private double proj(int[] array){
-        double projVal=0;
-        switch(projType){
-            case AVG_METHOD: for (int i=0; i<array.length; i++) projVal+=array[i]; projVal/=array.length; break;
-            case MAX_METHOD: Arrays.sort(array); projVal=array[array.length-1]; break;
-            case MIN_METHOD: Arrays.sort(array); projVal=array[0]; break;
-            case SUM_METHOD: for (int i=0; i<array.length; i++) projVal+=array[i]; break;
-            case SD_METHOD: double avg=0; for (int i=0; i<array.length; i++) avg+=array[i]; avg/=array.length; for (int i=0; i<array.length; i++) projVal+=(array[i]-avg)*(array[i]-avg); projVal=Math.sqrt(projVal/array.length); break;
-            case MEDIAN_METHOD: Arrays.sort(array); projVal=array[(int) (array.length/2+.5)]; break;
-            default: Arrays.sort(array); projVal=array[array.length-1]; break;
+    private static float select(float[] array, int n, int k){
+        int left=0, right=n-1;
+        while (left<right){
+            float pivot=array[(left+right)>>>1];
+            int i=left, j=right;
+            while (i<=j){
+                while (array[i]<pivot) i++;
+                while (array[j]>pivot) j--;
+                if (i<=j){
+                    float tmp=array[i];
+                    array[i]=array[j];
+                    array[j]=tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k<=j){
+                right=j;
+            }else if (k>=i){
+                left=i;
+            }else{
+                return array[k];
+            }
         }
-        return projVal;
+        return array[k];
     }
 
 }
@@ -0,0 +1,198 @@
+/**
+ *
+ *  projectionCache v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package metroloJ.utilities;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * projectionCache keeps the projections computed by orthoProjector in memory, so that a stack projected several times
+ * during a run (centre finding, side views, reports...) is only projected once per method and axis.
+ * The cache is only active between beginRun and endRun (runs may be nested or concurrent): all projections are released
+ * when the last run ends. Projections are invalidated should a stack's dimensions change, its pixel arrays be replaced or the
+ * fingerprint of its pixels change. The fingerprint only samples FINGERPRINT_SAMPLES pixels per slice: an in-place edit touching
+ * none of them goes unnoticed, hence code modifying pixels in place during a run should call invalidate.
+ * Virtual stacks are only checked on their dimensions.
+ * Projections are attached to the ImageStack they were computed from and are released together with it (weak keys).
+ * Cached ImageProcessors are shared: they should be considered as read-only (orthoProjector only hands out copies).
+ * @author agent
+ */
+public class projectionCache {
+    /** Number of evenly spaced pixels per slice used to fingerprint the stacks **/
+    public static final int FINGERPRINT_SAMPLES=1024;
+
+    /** Number of runs currently using the cache **/
+    private static int runs=0;
+
+    /** Stores the projections of each stack, keyed on the projection type and view **/
+    private static final Map<ImageStack, entry> cache=new WeakHashMap<ImageStack, entry>();
+
+    /**
+     * Projections of a single stack, along with the stack's dimensions, pixel arrays and their fingerprints when they were computed
+     */
+    private static class entry {
+        int w, h, d;
+        Object[] slices;
+        long[] fingerprints;
+        Map<Integer, ImageProcessor> views=new HashMap<Integer, ImageProcessor>();
+
+        /**
+         * Stores the stack's dimensions and, unless virtual, references to its pixel arrays and their fingerprints
+         */
+        entry(ImageStack is){
+            w=is.getWidth();
+            h=is.getHeight();
+            d=is.getSize();
+            if (!is.isVirtual()){
+                slices=Arrays.copyOf(is.getImageArray(), d);
+                fingerprints=new long[d];
+                for (int z=0; z<d; z++) fingerprints[z]=fingerprint(slices[z]);
+            }
+        }
+
+        /**
+         * Tells whether the stack still has the same dimensions, pixel arrays and fingerprints (virtual stacks: dimensions only)
+         */
+        boolean matches(ImageStack is){
+            if (is.getWidth()!=w || is.getHeight()!=h || is.getSize()!=d || is.isVirtual()!=(slices==null)) return false;
+            if (slices==null) return true;
+            Object[] current=is.getImageArray();
+            for (int z=0; z<d; z++) if (current[z]!=slices[z] || fingerprint(current[z])!=fingerprints[z]) return false;
+            return true;
+        }
+    }
+
+    /**
+     * Hashes (FNV-1a) FINGERPRINT_SAMPLES evenly spaced pixels of a 8-, 16-, 32-bits or RGB pixel array
+     * @param pixels the pixel array
+     * @return the fingerprint as a long
+     */
+    static long fingerprint(Object pixels){
+        long hash=0xcbf29ce484222325L;
+        int length=Array.getLength(pixels);
+        int step=Math.max(1, length/FINGERPRINT_SAMPLES);
+        for (int i=0; i<length; i+=step){
+            int val;
+            if (pixels instanceof byte[]) val=((byte[]) pixels)[i];
+            else if (pixels instanceof short[]) val=((short[]) pixels)[i];
+            else if (pixels instanceof float[]) val=Float.floatToIntBits(((float[]) pixels)[i]);
+            else val=((int[]) pixels)[i];
+            hash=(hash^val)*0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Tells whether the cache is used, i.e. whether a run is in progress
+     * @return true if the cache is enabled, false otherwise (default)
+     */
+    public static synchronized boolean isEnabled(){
+        return runs>0;
+    }
+
+    /**
+     * Starts a run (e.g. the generation of a report): the cache is used until the matching call to endRun
+     */
+    public static synchronized void beginRun(){
+        runs++;
+    }
+
+    /**
+     * Ends a run started by beginRun. All cached projections are released once no run is in progress anymore
+     */
+    public static synchronized void endRun(){
+        if (runs>0) runs--;
+        if (runs==0) cache.clear();
+    }
+
+    /**
+     * Retrieves projections from the cache
+     * @param is the projected ImageStack
+     * @param projType projection type as an integer
+     * @param views a 3 elements array, telling whether the XY, XZ and YZ views are requested
+     * @return an array of 3 ImageProcessors (the cached ones, not to be modified, null for views that were not requested),
+     * or null if any of the requested views is not in the cache
+     */
+    public static ImageProcessor[] get(ImageStack is, int projType, boolean[] views){
+        ImageProcessor[] out=new ImageProcessor[3];
+        synchronized (projectionCache.class){
+            if (runs==0) return null;
+            entry e=cache.get(is);
+            if (e==null) return null;
+            if (!e.matches(is)){
+                cache.remove(is);
+                return null;
+            }
+            for (int i=0; i<3; i++){
+                if (views[i]){
+                    out[i]=e.views.get(key(projType, i));
+                    if (out[i]==null) return null;
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Stores projections in the cache. They should not be modified afterwards
+     * @param is the projected ImageStack
+     * @param projType projection type as an integer
+     * @param projections an array of 3 ImageProcessors containing the XY, XZ and YZ views (null for views that were not computed)
+     */
+    public static void put(ImageStack is, int projType, ImageProcessor[] projections){
+        synchronized (projectionCache.class){
+            if (runs==0) return;
+            entry e=cache.get(is);
+            if (e==null || !e.matches(is)){
+                e=new entry(is);
+                cache.put(is, e);
+            }
+            for (int i=0; i<3; i++) if (projections[i]!=null) e.views.put(key(projType, i), projections[i]);
+        }
+    }
+
+    /**
+     * Removes all projections of a stack from the cache
+     * @param is the ImageStack
+     */
+    public static synchronized void invalidate(ImageStack is){
+        cache.remove(is);
+    }
+
+    /**
+     * Removes all projections from the cache
+     */
+    public static synchronized void clear(){
+        cache.clear();
+    }
+
+    private static Integer key(int projType, int view){
+        return projType*3+view;
+    }
+}
@@ -0,0 +1,333 @@
+/**
+ *
+ *  resultCache v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package metroloJ.utilities;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.measure.Calibration;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import metroloJ.utilities.tricks.threadTricks;
+
+/**
+ * resultCache stores analysis results on disk, so that re-running an analysis on the same image with the same parameters
+ * does not require to go through the pixels again. Results are keyed on a hash of the pixel data, the images' dimensions and calibration
+ * and the analysis parameters, together with the version of the analysis' algorithm, to be changed each time the algorithm changes.
+ * Only the classes explicitly expected by the caller are deserialized. The total size of the cache is bounded: the least recently used
+ * results are removed first. The cache is disabled by default: it is switched on, and its size set, from Plugins>MetroloJ>MetroloJ options (see setEnabled and setMaxSize).
+ * @author agent
+ */
+public class resultCache {
+    /** Default maximum size of the cache, in MB **/
+    public static final double DEFAULT_MAX_SIZE=256;
+
+    /** Extension of the cached results files **/
+    private static final String EXTENSION=".ser";
+
+    /** Version of the cache's own layout, part of all keys **/
+    private static final String FORMAT_VERSION="2";
+
+    /** Classes that may always be deserialized, besides primitive types, arrays of allowed classes and Object arrays (Vector's storage, whose elements are filtered as well) **/
+    private static final String[] ALLOWED_CLASSES={"java.lang.String", "java.lang.Number", "java.lang.Integer", "java.lang.Long", "java.lang.Double", "java.lang.Float", "java.lang.Boolean", "java.util.Vector", "java.util.ArrayList"};
+
+    /** FNV-1a 64 bits offset basis and prime, used for hashing **/
+    private static final long OFFSET=0xcbf29ce484222325L;
+    private static final long PRIME=0x100000001b3L;
+
+    /** Folder where the results are stored **/
+    public static File folder=new File(System.getProperty("user.home"), ".metroloJ"+File.separator+"cache");
+
+    /**
+     * Tells whether the cache should be used
+     * @return true if the cache is enabled, false otherwise (default)
+     */
+    public static boolean isEnabled(){
+        return Prefs.get("resultCache_enabled.boolean", false);
+    }
+
+    /**
+     * Enables/disables the cache
+     * @param enabled true to use the cache
+     */
+    public static void setEnabled(boolean enabled){
+        Prefs.set("resultCache_enabled.boolean", enabled);
+    }
+
+    /**
+     * Returns the maximum size of the cache
+     * @return the maximum size, in bytes
+     */
+    public static long getMaxSize(){
+        return (long) (Prefs.get("resultCache_maxSize.double", DEFAULT_MAX_SIZE)*1024*1024);
+    }
+
+    /**
+     * Sets the maximum size of the cache
+     * @param maxSize the maximum size, in MB
+     */
+    public static void setMaxSize(double maxSize){
+        Prefs.set("resultCache_maxSize.double", maxSize);
+    }
+
+    /**
+     * Generates the key under which results are stored
+     * @param analysis name of the analysis
+     * @param version version of the analysis' algorithm, to be changed each time a change may modify the results
+     * @param parameters analysis parameters, as a String
+     * @param ips the images being analysed (null elements are ignored)
+     * @return the key as a String
+     */
+    public static String getKey(String analysis, String version, String parameters, ImagePlus... ips){
+        if (version==null || version.isEmpty()) throw new IllegalArgumentException("resultCache requieres the analysis' version to be set");
+        long hash=hash(OFFSET, parameters);
+        for (ImagePlus ip:ips){
+            if (ip!=null) hash=mix(hash, getHash(ip));
+        }
+        return analysis+"_v"+version+"_"+FORMAT_VERSION+"_"+Long.toHexString(hash);
+    }
+
+    /**
+     * Calculates a hash of the image's dimensions, type, calibration and pixel data. Slices are hashed in parallel.
+     * @param ip the input ImagePlus
+     * @return the hash as a long
+     */
+    public static long getHash(ImagePlus ip){
+        ImageStack is=ip.getStack();
+        Calibration cal=ip.getCalibration();
+        long hash=hash(OFFSET, ip.getWidth()+"x"+ip.getHeight()+"x"+is.getSize()+"x"+ip.getBitDepth()+"_"+cal.pixelWidth+"x"+cal.pixelHeight+"x"+cal.pixelDepth+cal.getUnit()+"_"+cal.getFunction()+Arrays.toString(cal.getCoefficients()));
+
+        long[] sliceHashes=new long[is.getSize()];
+        threadTricks.getPool().invoke(new hashTask(is, sliceHashes, 0, sliceHashes.length));
+        for (int i=0; i<sliceHashes.length; i++) hash=mix(hash, sliceHashes[i]);
+        return hash;
+    }
+
+    /**
+     * Hashes a range of slices, splitting the range in halves down to a single slice
+     */
+    private static class hashTask extends RecursiveAction {
+        private static final long serialVersionUID=1L;
+
+        ImageStack is;
+        long[] hashes;
+        int start, end;
+
+        hashTask(ImageStack is, long[] hashes, int start, int end){
+            this.is=is;
+            this.hashes=hashes;
+            this.start=start;
+            this.end=end;
+        }
+
+        @Override
+        protected void compute(){
+            if (end-start<=1){
+                if (end>start) hashes[start]=hashPixels(is.getPixels(start+1));
+            }else{
+                int middle=(start+end)/2;
+                invokeAll(new hashTask(is, hashes, start, middle), new hashTask(is, hashes, middle, end));
+            }
+        }
+    }
+
+    /**
+     * Hashes a 8-, 16-, 32-bits or RGB pixel array
+     * @param pixels the pixel array
+     * @return the hash as a long
+     */
+    private static long hashPixels(Object pixels){
+        long hash=OFFSET;
+        if (pixels instanceof byte[]){
+            byte[] pix=(byte[]) pixels;
+            for (int i=0; i<pix.length; i++) hash=(hash^pix[i])*PRIME;
+        }else if (pixels instanceof short[]){
+            short[] pix=(short[]) pixels;
+            for (int i=0; i<pix.length; i++) hash=(hash^pix[i])*PRIME;
+        }else if (pixels instanceof float[]){
+            float[] pix=(float[]) pixels;
+            for (int i=0; i<pix.length; i++) hash=(hash^Float.floatToIntBits(pix[i]))*PRIME;
+        }else if (pixels instanceof int[]){
+            int[] pix=(int[]) pixels;
+            for (int i=0; i<pix.length; i++) hash=(hash^pix[i])*PRIME;
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String string){
+        for (int i=0; i<string.length(); i++) hash=(hash^string.charAt(i))*PRIME;
+        return hash;
+    }
+
+    private static long mix(long hash, long value){
+        for (int i=0; i<8; i++){
+            hash=(hash^(value&0xff))*PRIME;
+            value>>>=8;
+        }
+        return hash;
+    }
+
+    /**
+     * Retrieves results from the cache. Only the expected class, the classes it refers to (to be listed) and basic types
+     * (primitives, String, boxed numbers, Vector, ArrayList and arrays of those) are deserialized: any other class is rejected.
+     * @param key the key under which the results have been stored
+     * @param type expected class of the results
+     * @param allowed other classes referred to by the results
+     * @return the results, null if not found, not of the expected type or unreadable (or if the cache is disabled)
+     */
+    public static synchronized <T extends Serializable> T get(String key, Class<T> type, Class<?>... allowed){
+        if (!isEnabled()) return null;
+        File file=new File(folder, key+EXTENSION);
+        if (!file.exists()) return null;
+
+        HashSet<String> names=new HashSet<String>(Arrays.asList(ALLOWED_CLASSES));
+        names.add(type.getName());
+        for (Class<?> c:allowed) names.add(c.getName());
+
+        ObjectInputStream in=null;
+        try {
+            in=new filteredInputStream(new BufferedInputStream(new FileInputStream(file)), names);
+            Object out=in.readObject();
+            if (!type.isInstance(out)) throw new InvalidClassException(out==null?"null":out.getClass().getName(), "unexpected cached results");
+            file.setLastModified(System.currentTimeMillis());
+            return type.cast(out);
+        } catch (Exception ex) {
+            //Unreadable or outdated results: they are removed and recomputed
+            file.delete();
+            return null;
+        } finally {
+            if (in!=null) try {
+                in.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * ObjectInputStream only resolving the allowed classes, primitive types and arrays of those
+     */
+    private static class filteredInputStream extends ObjectInputStream {
+        HashSet<String> allowed;
+
+        filteredInputStream(InputStream in, HashSet<String> allowed) throws IOException{
+            super(in);
+            this.allowed=allowed;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException{
+            String name=desc.getName();
+            int dim=0;
+            while (dim<name.length() && name.charAt(dim)=='[') dim++;
+            //Arrays of primitives have a single letter component (e.g. [D), arrays of objects a [Lname; component
+            boolean isAllowed=(dim>0 && name.length()==dim+1) || name.equals("[Ljava.lang.Object;") || allowed.contains(dim>0?name.substring(dim+1, name.length()-1):name);
+            if (!isAllowed) throw new InvalidClassException(name, "class not allowed in the resultCache");
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException{
+            throw new InvalidClassException("proxy", "class not allowed in the resultCache");
+        }
+    }
+
+    /**
+     * Stores results in the cache, the least recently used results being removed if the cache exceeds its maximum size
+     * @param key the key under which the results are stored
+     * @param results the results to store
+     */
+    public static synchronized void put(String key, Serializable results){
+        if (!isEnabled()) return;
+        if (!folder.exists() && !folder.mkdirs()) return;
+        File tmp=new File(folder, key+".tmp");
+        ObjectOutputStream out=null;
+        try {
+            out=new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeObject(results);
+            out.close();
+            out=null;
+            File file=new File(folder, key+EXTENSION);
+            file.delete();
+            if (!tmp.renameTo(file)) tmp.delete();
+        } catch (IOException ex) {
+            tmp.delete();
+            Logger.getLogger(resultCache.class.getName()).log(Level.WARNING, null, ex);
+        } finally {
+            if (out!=null) try {
+                out.close();
+            } catch (IOException ex) {
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Removes the least recently used results until the cache's size is below its maximum size
+     */
+    private static void evict(){
+        File[] files=folder.listFiles();
+        if (files==null) return;
+        long size=0;
+        for (File file:files) size+=file.length();
+        long maxSize=getMaxSize();
+        if (size<=maxSize) return;
+
+        Arrays.sort(files, new Comparator<File>(){
+            public int compare(File a, File b){
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i=0; i<files.length && size>maxSize; i++){
+            long length=files[i].length();
+            if (files[i].getName().endsWith(EXTENSION) && files[i].delete()) size-=length;
+        }
+    }
+
+    /**
+     * Removes all results from the cache
+     */
+    public static synchronized void clear(){
+        File[] files=folder.listFiles();
+        if (files==null) return;
+        for (File file:files){
+            if (file.getName().endsWith(EXTENSION)) file.delete();
+        }
+    }
+}
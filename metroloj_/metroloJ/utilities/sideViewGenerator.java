@@ -60,6 +60,12 @@ public class sideViewGenerator {
     */
      public ImagePlus getXYview(ImagePlus ip, int projType){
         Calibration cal=ip.getCalibration();
+        if (isSupported(ip, projType)){
+            ImagePlus output=new ImagePlus("XY view", orthoProjector.project(ip.getStack(), projType, new boolean[]{true, false, false})[orthoProjector.XY]);
+            output.setCalibration(cal);
+            return output;
+        }
+
         ip.setCalibration(new Calibration());
         
         ZProjector zp=new ZProjector(ip);
@@ -113,7 +119,19 @@ public class sideViewGenerator {
          double xzRatio=cal.pixelDepth/cal.pixelWidth;
          double yzRatio=cal.pixelDepth/cal.pixelHeight;
 
-         ImageProcessor xy=getXYview(ip, projType).getProcessor();
+         //All three views are computed in a single pass whenever possible
+         ImageProcessor xy, xz, yz;
+         if (isSupported(ip, projType)){
+             ImageProcessor[] views=orthoProjector.project(ip.getStack(), projType, new boolean[]{true, true, true}, keepCalibration?xzRatio:1, keepCalibration?yzRatio:1);
+             xy=views[orthoProjector.XY];
+             xz=calibrateView(views[orthoProjector.XZ], cal, keepCalibration, XZ_VIEW).getProcessor();
+             yz=calibrateView(views[orthoProjector.YZ], cal, keepCalibration, YZ_VIEW).getProcessor();
+         }else{
+             xy=getXYview(ip, projType).getProcessor();
+             xz=getXZview(ip, projType, keepCalibration).getProcessor();
+             yz=getYZview(ip, projType, keepCalibration).getProcessor();
+         }
+
          if (addCross){
              int[] coord=new int[2];
              coord[0]=(int) (coordCross[0]+.5);
@@ -126,7 +144,6 @@ public class sideViewGenerator {
          if (addScaleBar) addScaleBar(xy, cal, size);
          
 
-         ImageProcessor xz=getXZview(ip, projType, keepCalibration).getProcessor();
          if (addCross){
              int[] coord=new int[2];
              coord[0]=(int) (coordCross[0]+.5);
@@ -137,7 +154,7 @@ public class sideViewGenerator {
          xz.setFont(font);
          xz.drawString("XZ", 3, 15);
          
-         ImageProcessor yz=getYZview(ip, projType, keepCalibration).getProcessor().rotateRight();
+         yz=yz.rotateRight();
          yz.flipHorizontal();
          if (addCross){
              int[] coord=new int[2];
@@ -171,6 +188,30 @@ public class sideViewGenerator {
       */
      private ImagePlus sideView(ImagePlus ip, int projType, boolean keepCalibration, int view){
         Calibration cal=ip.getCalibration();
+        double ratio=keepCalibration?cal.pixelDepth/(view==XZ_VIEW?cal.pixelWidth:cal.pixelHeight):1;
+        ImageProcessor proj;
+
+        if (isSupported(ip, projType)){
+            int index=view==XZ_VIEW?orthoProjector.XZ:orthoProjector.YZ;
+            boolean[] views=new boolean[]{false, view==XZ_VIEW, view==YZ_VIEW};
+            proj=orthoProjector.project(ip.getStack(), projType, views, ratio, ratio)[index];
+        }else{
+            proj=orthoProjector.stretch(resliceView(ip, projType, view), ratio);
+        }
+
+        return calibrateView(proj, cal, keepCalibration, view);
+     }
+
+     /**
+      * Generates either the XZ or YZ side-view by reslicing the ImagePlus then projecting the resliced stack.
+      * Only used for the projections/image types the orthoProjector doesn't handle.
+      * @param ip the ImagePlus of the stack to be represented
+      * @param projection type as an integer
+      * @param view should be 0 for XZ view and 1 for YZ view
+      * @return an ImageProcessor containing the uncalibrated view
+      */
+     private ImageProcessor resliceView(ImagePlus ip, int projType, int view){
+        Calibration cal=ip.getCalibration();
 
         ip.setCalibration(new Calibration());
         
@@ -195,19 +236,21 @@ public class sideViewGenerator {
         zp.setMethod(projType);
         zp.doProjection();
 
-        ImagePlus output=zp.getProjection();
-        
-        if (keepCalibration){
-            ImageProcessor iproc=output.getProcessor();
-            iproc.setInterpolate(true);
+        return zp.getProjection().getProcessor();
+     }
 
-            if (view==XZ_VIEW){
-                iproc=iproc.resize(output.getWidth(), (int) (output.getHeight()*cal.pixelDepth/cal.pixelWidth));
-            }else{
-                iproc=iproc.resize(output.getWidth(), (int) (output.getHeight()*cal.pixelDepth/cal.pixelHeight));
-            }
-            output=new ImagePlus("sideView", iproc);
-        }else{
+     /**
+      * Packs a side-view into an ImagePlus, calibrating it when it hasn't been stretched according to the XY/Z calibration disparity
+      * @param iproc the XZ or YZ side-view, already stretched if keepCalibration is true
+      * @param cal the Calibration of the original stack
+      * @param keepCalibration true to take into account the disparity of calibration in XY/Z, false otherwise
+      * @param view should be 0 for XZ view and 1 for YZ view
+      * @return an ImagePlus containing the view
+      */
+     private ImagePlus calibrateView(ImageProcessor iproc, Calibration cal, boolean keepCalibration, int view){
+        ImagePlus output=new ImagePlus("sideView", iproc);
+        if (!keepCalibration){
+            cal=cal.copy();
             if (view==XZ_VIEW){
                 cal.pixelHeight=cal.pixelDepth;
                 cal.pixelDepth=1;
@@ -222,6 +265,16 @@ public class sideViewGenerator {
         return output;
      }
 
+     /**
+      * Tells whether the views of the ImagePlus can be generated by the orthoProjector (single pass over the pixels)
+      * @param ip the ImagePlus of the stack to be represented
+      * @param projType projection type as an integer
+      * @return true if the orthoProjector can be used, false if the stack should be resliced
+      */
+     private boolean isSupported(ImagePlus ip, int projType){
+        return ip.getStackSize()==ip.getNSlices() && orthoProjector.isSupported(ip.getStack(), projType);
+     }
+
      /**
       * Draws a scale bar on the ImageProcessor used as argument (adapted from the original ImageJ ScaleBar class)
       * @param ip ImageProcessor on which to draw the scale bar
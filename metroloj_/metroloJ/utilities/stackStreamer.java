@@ -0,0 +1,261 @@
+/**
+ *
+ *  stackStreamer v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package metroloJ.utilities;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.plugin.FileInfoVirtualStack;
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.util.concurrent.RecursiveTask;
+import metroloJ.utilities.tricks.threadTricks;
+
+/**
+ * stackStreamer reads a stack one plane at a time and, in this single pass, accumulates its XY, XZ and YZ projections,
+ * its global histogram (8- and 16-bits stacks) and its maximum intensity voxel. Only the plane being processed and the
+ * next one, read ahead on the shared pool, are held in memory, so that stacks larger than the heap can be analysed when
+ * opened as virtual stacks (see openTiff and openRaw).
+ * Supported projections are AVG_METHOD, MAX_METHOD, MIN_METHOD, SUM_METHOD and SD_METHOD, as defined in sideViewGenerator.
+ * @author agent
+ */
+public class stackStreamer {
+    /** Accumulates the projections **/
+    orthoProjector projector;
+
+    /** Stores the histogram, as a 256 (8-bits) or 65536 (16-bits) elements array, null for 32-bits stacks **/
+    long[] histo=null;
+
+    /** Stores the minimum, maximum and mean intensities **/
+    double min=Double.POSITIVE_INFINITY, max=Double.NEGATIVE_INFINITY, mean=0;
+
+    /** Stores the coordinates of the maximum intensity voxel: x, y, and z (slice number, starting from 1) **/
+    int[] maxCoord=new int[3];
+
+    /** Position of the maximum intensity voxel within its plane **/
+    int maxIndex=0;
+
+    /**
+     * Streams the stack and accumulates the requested projections and statistics
+     * @param is the input ImageStack (8-, 16- or 32-bits), preferably virtual for large datasets
+     * @param projType projection type as an integer (MEDIAN_METHOD is not supported)
+     * @param views a 3 elements array, telling whether the XY, XZ and YZ views should be computed (all false to only get statistics)
+     */
+    public stackStreamer(ImageStack is, int projType, boolean[] views){
+        if (projType==sideViewGenerator.MEDIAN_METHOD) throw new IllegalArgumentException("stackStreamer does not support median projections");
+        projector=new orthoProjector(is, projType, views, 1, 1);
+        if (projector.bitDepth==24) throw new IllegalArgumentException("stackStreamer expects a 8-, 16- or 32-bits stack");
+        if (projector.integer) histo=new long[projector.bitDepth==8?256:65536];
+        boolean project=views[orthoProjector.XY] || views[orthoProjector.XZ] || views[orthoProjector.YZ];
+        if (project) projector.allocate();
+
+        int w=projector.w, d=projector.d;
+        double sum=0;
+        readTask next=new readTask(is, 1);
+        threadTricks.getPool().execute(next);
+        for (int z=0; z<d; z++){
+            Object pixels=next.join();
+            if (z+1<d){
+                next=new readTask(is, z+2);
+                threadTricks.getPool().execute(next);
+            }
+            if (project) projector.addPlane(pixels, z);
+            sum+=addStatistics(pixels, z+1, w);
+        }
+        mean=sum/((double) w*projector.h*d);
+    }
+
+    /**
+     * Streams the stack and accumulates its three projections and statistics
+     * @param is the input ImageStack (8-, 16- or 32-bits), preferably virtual for large datasets
+     * @param projType projection type as an integer (MEDIAN_METHOD is not supported)
+     */
+    public stackStreamer(ImageStack is, int projType){
+        this(is, projType, new boolean[]{true, true, true});
+    }
+
+    /**
+     * Reads a single plane, ahead of its processing
+     */
+    private static class readTask extends RecursiveTask<Object> {
+        private static final long serialVersionUID=1L;
+
+        ImageStack is;
+        int slice;
+
+        readTask(ImageStack is, int slice){
+            this.is=is;
+            this.slice=slice;
+        }
+
+        @Override
+        protected Object compute(){
+            return is.getPixels(slice);
+        }
+    }
+
+    /**
+     * Updates the histogram, extrema and maximum intensity voxel with a plane
+     * @param pixels the plane's pixel array
+     * @param slice the plane's slice number, starting from 1
+     * @param w the plane's width
+     * @return the sum of the plane's intensities
+     */
+    private double addStatistics(Object pixels, int slice, int w){
+        double sum=0;
+        float planeMin=Float.POSITIVE_INFINITY, planeMax=Float.NEGATIVE_INFINITY;
+        int index=0;
+        if (pixels instanceof byte[]){
+            byte[] pix=(byte[]) pixels;
+            for (int i=0; i<pix.length; i++){
+                int value=pix[i]&0xff;
+                histo[value]++;
+                sum+=value;
+                if (value<planeMin) planeMin=value;
+                if (value>planeMax){
+                    planeMax=value;
+                    index=i;
+                }
+            }
+        }else if (pixels instanceof short[]){
+            short[] pix=(short[]) pixels;
+            for (int i=0; i<pix.length; i++){
+                int value=pix[i]&0xffff;
+                histo[value]++;
+                sum+=value;
+                if (value<planeMin) planeMin=value;
+                if (value>planeMax){
+                    planeMax=value;
+                    index=i;
+                }
+            }
+        }else{
+            float[] pix=(float[]) pixels;
+            for (int i=0; i<pix.length; i++){
+                float value=pix[i];
+                sum+=value;
+                if (value<planeMin) planeMin=value;
+                if (value>planeMax){
+                    planeMax=value;
+                    index=i;
+                }
+            }
+        }
+
+        min=Math.min(min, planeMin);
+        //Ties are broken using the position within the plane, then the slice number, as done in findMax
+        if (planeMax>max || (planeMax==max && index<maxIndex)){
+            max=planeMax;
+            maxIndex=index;
+            maxCoord=new int[]{index%w, index/w, slice};
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the projections
+     * @return an array of 3 ImageProcessors containing the XY, XZ and YZ views (null for views that were not requested),
+     * with the same layout as orthoProjector's outputs
+     */
+    public ImageProcessor[] getViews(){
+        return getViews(1, 1);
+    }
+
+    /**
+     * Returns the projections, the XZ and YZ views being stretched along z (see orthoProjector.project)
+     * @param xzRatio ratio between the output and the original number of rows of the XZ view, 1 to keep the native sampling
+     * @param yzRatio ratio between the output and the original number of rows of the YZ view, 1 to keep the native sampling
+     * @return an array of 3 ImageProcessors containing the XY, XZ and YZ views (null for views that were not requested),
+     * with the same layout as orthoProjector's outputs
+     */
+    public ImageProcessor[] getViews(double xzRatio, double yzRatio){
+        projector.xzRatio=xzRatio;
+        projector.yzRatio=yzRatio;
+        return projector.buildViews();
+    }
+
+    /**
+     * Returns the histogram of the full stack
+     * @return a 256 (8-bits) or 65536 (16-bits) elements array, null for 32-bits stacks
+     */
+    public long[] getHistogram(){
+        return histo;
+    }
+
+    /**
+     * Returns the coordinates of the maximum intensity voxel (the first one in raster order, then along z, should there be several)
+     * @return an array of integer of size 3: x coordinate at index 0, y at index 1 and z (slice number, starting from 1) at index 2
+     */
+    public int[] getMaxCoordinates(){
+        return maxCoord;
+    }
+
+    /**
+     * Returns the minimum, maximum and mean intensities of the stack
+     * @return a double array containing the minimum at index 0, the maximum at index 1 and the mean at index 2
+     */
+    public double[] getStatistics(){
+        return new double[]{min, max, mean};
+    }
+
+    /**
+     * Opens a TIFF file as a virtual stack: planes are only read when requested
+     * @param path path to the TIFF file
+     * @return the virtual ImagePlus, null if the file can't be opened
+     */
+    public static ImagePlus openTiff(String path){
+        return FileInfoVirtualStack.openVirtual(path);
+    }
+
+    /**
+     * Opens a raw file (planes stored one after the other, without any gap) as a virtual stack: planes are only read when requested
+     * @param path path to the raw file
+     * @param width width of a plane
+     * @param height height of a plane
+     * @param nSlices number of planes
+     * @param bitDepth 8, 16 (unsigned) or 32 (float)
+     * @param offset size of the header, in bytes
+     * @param littleEndian true if the data is stored in little-endian (intel) byte order
+     * @return the virtual ImagePlus
+     */
+    public static ImagePlus openRaw(String path, int width, int height, int nSlices, int bitDepth, long offset, boolean littleEndian){
+        File file=new File(path);
+        FileInfo fi=new FileInfo();
+        switch (bitDepth){
+            case 8: fi.fileType=FileInfo.GRAY8; break;
+            case 16: fi.fileType=FileInfo.GRAY16_UNSIGNED; break;
+            case 32: fi.fileType=FileInfo.GRAY32_FLOAT; break;
+            default: throw new IllegalArgumentException("stackStreamer expects 8-, 16- or 32-bits raw data");
+        }
+        fi.fileFormat=FileInfo.RAW;
+        fi.fileName=file.getName();
+        fi.directory=file.getAbsoluteFile().getParent()+File.separator;
+        fi.width=width;
+        fi.height=height;
+        fi.nImages=nSlices;
+        fi.longOffset=offset;
+        fi.intelByteOrder=littleEndian;
+        return new ImagePlus(file.getName(), new FileInfoVirtualStack(fi, false));
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ *
+ *  stackTricks v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package metroloJ.utilities.tricks;
+
+import ij.ImageStack;
+import java.util.Arrays;
+
+/**
+ * stackTricks contains commonly used tools to read data straight from the pixel arrays of a stack, without
+ * going through the ImagePlus (i.e. without changing its current slice, ROI or calibration)
+ * @author agent
+ */
+public class stackTricks {
+
+    /**
+     * Returns the value of a pixel from a 8-, 16- or 32-bits pixel array
+     * @param pixels the pixel array (byte[], short[] or float[])
+     * @param index index of the pixel within the array (x+y*width)
+     * @return the pixel value as a float
+     */
+    public static float getValue(Object pixels, int index){
+        if (pixels instanceof byte[]) return ((byte[]) pixels)[index]&0xff;
+        if (pixels instanceof short[]) return ((short[]) pixels)[index]&0xffff;
+        if (pixels instanceof float[]) return ((float[]) pixels)[index];
+        throw new IllegalArgumentException("Expecting a 8-, 16- or 32-bits stack");
+    }
+
+    /**
+     * Retrieves the intensity profile along the z axis, at position (x, y), possibly averaged over a avgSize x avgSize neighbourhood.
+     * Only the pixels from the column (or neighbourhood) are read, one slice after the other.
+     * @param is the stack from which to retrieve the profile
+     * @param x x coordinate of the column
+     * @param y y coordinate of the column
+     * @param avgSize size of the neighbourhood over which intensities are averaged, 1 for no averaging
+     * @return the profile as a double array of size is.getSize()
+     */
+    public static double[] getZprofile(ImageStack is, int x, int y, int avgSize){
+        int w=is.getWidth();
+        int h=is.getHeight();
+        int xStart=Math.max(0, x-(avgSize-1)/2);
+        int yStart=Math.max(0, y-(avgSize-1)/2);
+        int xEnd=Math.min(w-1, xStart+Math.max(1, avgSize)-1);
+        int yEnd=Math.min(h-1, yStart+Math.max(1, avgSize)-1);
+        int nPixels=(xEnd-xStart+1)*(yEnd-yStart+1);
+
+        double[] profile=new double[is.getSize()];
+        for (int z=0; z<profile.length; z++){
+            Object pixels=is.getPixels(z+1);
+            double sum=0;
+            for (int j=yStart; j<=yEnd; j++){
+                for (int i=xStart; i<=xEnd; i++) sum+=getValue(pixels, i+j*w);
+            }
+            profile[z]=sum/nPixels;
+        }
+        return profile;
+    }
+
+    /**
+     * Retrieves the intensity profile along the z axis, at a sub-pixel position (x, y), possibly averaged over a avgSize x avgSize neighbourhood.
+     * Intensities are bilinearly interpolated within each slice; integer coordinates give the same profile as getZprofile(is, int, int, int).
+     * @param is the stack from which to retrieve the profile
+     * @param x x coordinate of the column
+     * @param y y coordinate of the column
+     * @param avgSize size of the neighbourhood over which intensities are averaged, 1 for no averaging
+     * @return the profile as a double array of size is.getSize()
+     */
+    public static double[] getZprofile(ImageStack is, double x, double y, int avgSize){
+        int w=is.getWidth();
+        int h=is.getHeight();
+        double xStart=Math.max(0, x-(avgSize-1)/2);
+        double yStart=Math.max(0, y-(avgSize-1)/2);
+        double xEnd=Math.min(w-1, xStart+Math.max(1, avgSize)-1);
+        double yEnd=Math.min(h-1, yStart+Math.max(1, avgSize)-1);
+        int nPixels=((int) (xEnd-xStart)+1)*((int) (yEnd-yStart)+1);
+
+        double[] profile=new double[is.getSize()];
+        for (int z=0; z<profile.length; z++){
+            Object pixels=is.getPixels(z+1);
+            double sum=0;
+            for (double j=yStart; j<=yEnd; j++){
+                for (double i=xStart; i<=xEnd; i++) sum+=getInterpolatedValue(pixels, w, h, i, j);
+            }
+            profile[z]=sum/nPixels;
+        }
+        return profile;
+    }
+
+    /**
+     * Retrieves the intensity profile along the x (or y) axis, at a sub-pixel position along the two other axes.
+     * Intensities are interpolated bilinearly between the two closest rows (or columns) and the two closest slices.
+     * @param is the stack from which to retrieve the profile
+     * @param horizontal true for a profile along x, false for a profile along y
+     * @param position y coordinate of the profile when along x, x coordinate when along y
+     * @param z slice number (starting from 1) of the profile
+     * @return the profile as a double array of size is.getWidth() (along x) or is.getHeight() (along y)
+     */
+    public static double[] getLineProfile(ImageStack is, boolean horizontal, double position, double z){
+        int w=is.getWidth();
+        int h=is.getHeight();
+        int n=horizontal?w:h;
+        int max=horizontal?h-1:w-1;
+
+        double pos=Math.max(0, Math.min(max, position));
+        int pos0=Math.min((int) pos, Math.max(0, max-1));
+        double dPos=pos-pos0;
+        int pos1=Math.min(max, pos0+1);
+
+        double zPos=Math.max(1, Math.min(is.getSize(), z));
+        int z0=Math.min((int) zPos, Math.max(1, is.getSize()-1));
+        double dz=zPos-z0;
+        int z1=Math.min(is.getSize(), z0+1);
+
+        Object[] slices={is.getPixels(z0), is.getPixels(z1)};
+        double[] weights={1-dz, dz};
+        double[] profile=new double[n];
+        for (int k=0; k<2; k++){
+            if (weights[k]==0) continue;
+            for (int i=0; i<n; i++){
+                int index0=horizontal?i+pos0*w:pos0+i*w;
+                int index1=horizontal?i+pos1*w:pos1+i*w;
+                profile[i]+=weights[k]*((1-dPos)*getValue(slices[k], index0)+dPos*getValue(slices[k], index1));
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Returns the bilinearly interpolated value at a sub-pixel position of a 8-, 16- or 32-bits pixel array
+     * @param pixels the pixel array
+     * @param w width of the image
+     * @param h height of the image
+     * @param x x coordinate, clipped to the image
+     * @param y y coordinate, clipped to the image
+     * @return the interpolated value as a double
+     */
+    public static double getInterpolatedValue(Object pixels, int w, int h, double x, double y){
+        x=Math.max(0, Math.min(w-1, x));
+        y=Math.max(0, Math.min(h-1, y));
+        int x0=Math.min((int) x, Math.max(0, w-2));
+        int y0=Math.min((int) y, Math.max(0, h-2));
+        int x1=Math.min(w-1, x0+1);
+        int y1=Math.min(h-1, y0+1);
+        double dx=x-x0;
+        double dy=y-y0;
+        double top=(1-dx)*getValue(pixels, x0+y0*w)+dx*getValue(pixels, x1+y0*w);
+        double bottom=(1-dx)*getValue(pixels, x0+y1*w)+dx*getValue(pixels, x1+y1*w);
+        return (1-dy)*top+dy*bottom;
+    }
+
+    /**
+     * Retrieves the median intensity of the pixels lying within an annulus, on a single slice
+     * @param is the stack from which to retrieve the intensities
+     * @param x x coordinate of the annulus' centre
+     * @param y y coordinate of the annulus' centre
+     * @param z slice number (starting from 1)
+     * @param innerRadius pixels closer to the centre are excluded, in pixels
+     * @param outerRadius pixels further from the centre are excluded, in pixels
+     * @return the median as a double, NaN if the annulus lies outside the image
+     */
+    public static double getAnnulusMedian(ImageStack is, int x, int y, int z, double innerRadius, double outerRadius){
+        int w=is.getWidth();
+        int h=is.getHeight();
+        int r=(int) Math.ceil(outerRadius);
+        Object pixels=is.getPixels(z);
+        float[] values=new float[(2*r+1)*(2*r+1)];
+        int n=0;
+        for (int j=Math.max(0, y-r); j<=Math.min(h-1, y+r); j++){
+            for (int i=Math.max(0, x-r); i<=Math.min(w-1, x+r); i++){
+                double distSqr=(i-x)*(i-x)+(j-y)*(j-y);
+                if (distSqr>innerRadius*innerRadius && distSqr<=outerRadius*outerRadius) values[n++]=getValue(pixels, i+j*w);
+            }
+        }
+        if (n==0) return Double.NaN;
+        Arrays.sort(values, 0, n);
+        return n%2==1?values[n/2]:(values[n/2-1]+values[n/2])/2.0;
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ *
+ *  threadTricks v1, 18 oct. 2026
+    agent, agent at local
+
+    Copyright (C) 2026 agent
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package metroloJ.utilities.tricks;
+
+import ij.Prefs;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * threadTricks contains commonly used tools to run analyses in parallel
+ * @author agent
+ */
+public class threadTricks {
+    /** Stores the pool shared by all parallel analyses **/
+    private static ForkJoinPool pool=null;
+
+    /**
+     * Returns the fork-join pool shared by all parallel analyses. It is created on first call,
+     * using as many threads as set in ImageJ's preferences (Edit>Options>Memory & Threads)
+     * @return the shared ForkJoinPool
+     */
+    public static synchronized ForkJoinPool getPool(){
+        if (pool==null) pool=new ForkJoinPool(Math.max(1, Prefs.getThreads()));
+        return pool;
+    }
+}
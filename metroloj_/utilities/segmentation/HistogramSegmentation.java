@@ -24,8 +24,12 @@
 package utilities.segmentation;
 
 import ij.*;
-import ij.gui.NewImage;
-import ij.process.*;
+import java.lang.reflect.Array;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import metroloJ.utilities.sideViewGenerator;
+import metroloJ.utilities.stackStreamer;
+import metroloJ.utilities.tricks.threadTricks;
 
 /**
  *
@@ -36,7 +40,23 @@ public class HistogramSegmentation {
     int min=0, max=0;
     int[] limits;
     
+    /** Binning of the histogram: bin i gathers intensities within [binStart+i*binWidth; binStart+(i+1)*binWidth[. By default, a bin per grey level **/
+    double binStart=0, binWidth=1;
+    
+    /** Tells whether the histogram is binned (see HistogramSegmentation(ImagePlus, int)) **/
+    boolean binned=false;
+    
+    /** For binned 8- and 16-bits images, gives the bin of each grey level **/
+    int[] binLut=null;
+    
+    /** Cumulative histograms: element i holds the sum over bins [0; i[ of the counts, intensity-weighted counts, log of the counts and intensity-weighted log of the counts **/
+    long[] cumCount, cumInt;
+    double[] cumLog, cumLogInt;
+    
     /** Creates a new instance of HistogramSegmentation. Only works on 8- and 16-bits images.
+     * The histogram is built on the full stack, reading the slices' pixel arrays directly: slices are split into ranges,
+     * each range being histogrammed by a separate thread before the partial histograms are summed up.
+     * Virtual stacks are streamed instead (see stackStreamer), each plane being read once and only two planes being held in memory.
      * @param ip specifies the ImagePlus to process.
     */
     public HistogramSegmentation (ImagePlus ip){
@@ -44,23 +64,289 @@ public class HistogramSegmentation {
         if (bitDepth!=8 && bitDepth!=16) throw new IllegalArgumentException("Histo_seg expect a 8- or 16-bits images");
         
         //build the histogram on the full stack
-        this.max=0;
-        this.min=(int) Math.pow(2, bitDepth);
-        this.histo=new int[this.min];
+        ImageStack is=ip.getStack();
+        if (is.isVirtual()){
+            this.histo=toIntHisto(streamHisto(is));
+            init();
+            return;
+        }
+        int nSlices=ip.getNSlices();
+        int grain=Math.max(1, nSlices/(4*threadTricks.getPool().getParallelism()));
+        this.histo=threadTricks.getPool().invoke(new histoTask(is, 1, nSlices+1, grain, 1<<bitDepth));
+        init();
+    }
+    
+    /** Creates a new instance of HistogramSegmentation, using an adaptive binning. Works on 8-, 16- and 32-bits images.
+     * The full stack is first scanned for its minimum and maximum intensities, then the histogram is built using nBins bins spanning this range.
+     * On 8- and 16-bits images, bins are made of whole grey levels: fewer bins are used should the range be narrower than nBins.
+     * NaN pixels are ignored. Both passes are run in parallel, as for HistogramSegmentation(ImagePlus).
+     * Virtual 8- and 16-bits stacks are streamed once (see stackStreamer), the binned histogram being derived from the full one.
+     * Virtual 32-bits stacks are streamed for their range, then read a second time, plane by plane, to fill the bins.
+     * Limits, medians and class boundaries are then expressed as bin numbers (see getValue and getLimitValues), means and integrated intensities as intensities.
+     * @param ip specifies the ImagePlus to process.
+     * @param nBins specifies the maximum number of bins of the histogram.
+    */
+    public HistogramSegmentation (ImagePlus ip, int nBins){
+        int bitDepth=ip.getBitDepth();
+        if (bitDepth!=8 && bitDepth!=16 && bitDepth!=32) throw new IllegalArgumentException("Histo_seg expect a 8-, 16- or 32-bits images");
+        if (nBins<1) throw new IllegalArgumentException("Histo_seg expect at least one bin");
         
-        for (int z=1; z<=ip.getNSlices(); z++){
-            ip.setSlice(z);
-            for (int y=0; y<ip.getHeight(); y++){
-                for (int x=0; x<ip.getWidth(); x++){
-                    int val=ip.getPixel(x, y)[0];
-                    this.min=Math.min(this.min, val);
-                    this.max=Math.max(this.max, val);
-                    this.histo[val]++;
+        ImageStack is=ip.getStack();
+        int nSlices=ip.getNSlices();
+        long[] fullHisto=null;
+        double[] range;
+        if (is.isVirtual() && bitDepth!=32){
+            fullHisto=streamHisto(is);
+            range=new double[]{Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            for (int i=0; i<fullHisto.length; i++){
+                if (fullHisto[i]!=0){
+                    range[0]=Math.min(range[0], i);
+                    range[1]=i;
                 }
             }
+        }else if (is.isVirtual()){
+            double[] stats=new stackStreamer(is, sideViewGenerator.MAX_METHOD, new boolean[]{false, false, false}).getStatistics();
+            range=new double[]{stats[0], stats[1]};
+        }else{
+            range=threadTricks.getPool().invoke(new rangeTask(is, 1, nSlices+1));
+        }
+        if (range[0]>range[1]) range=new double[]{0, 0};
+        
+        this.binned=true;
+        this.binStart=range[0];
+        if (bitDepth==32){
+            this.binWidth=range[1]>range[0]?(range[1]-range[0])/nBins:1;
+        }else{
+            int nLevels=(int) (range[1]-range[0])+1;
+            this.binWidth=Math.ceil(nLevels/(double) nBins);
+            nBins=(int) Math.ceil(nLevels/this.binWidth);
+            this.binLut=new int[1<<bitDepth];
+            for (int i=0; i<this.binLut.length; i++) this.binLut[i]=getBin(i, nBins);
+        }
+        
+        if (fullHisto!=null){
+            long[] binnedHisto=new long[nBins];
+            for (int i=0; i<fullHisto.length; i++) binnedHisto[this.binLut[i]]+=fullHisto[i];
+            this.histo=toIntHisto(binnedHisto);
+        }else if (is.isVirtual()){
+            this.histo=new int[nBins];
+            for (int z=1; z<=nSlices; z++) addToHisto(is.getPixels(z), this.histo);
+        }else{
+            int grain=Math.max(1, nSlices/(4*threadTricks.getPool().getParallelism()));
+            this.histo=threadTricks.getPool().invoke(new histoTask(is, 1, nSlices+1, grain, nBins));
+        }
+        init();
+    }
+    
+    /** Creates a new instance of HistogramSegmentation from a precomputed histogram (e.g. ImageStatistics' histogram or histogram16).
+     * @param histo specifies the histogram, as an integer array (of size 256 for 8-bits images, 65536 for 16-bits images). It is used as is, not copied, and should not be modified afterwards.
+    */
+    public HistogramSegmentation (int[] histo){
+        if (histo==null || histo.length==0) throw new IllegalArgumentException("Histo_seg expect a non empty histogram");
+        this.histo=histo;
+        init();
+    }
+    
+    /** Creates a new instance of HistogramSegmentation from a precomputed histogram (e.g. stackStreamer's histogram).
+     * @param histo specifies the histogram, as a long array (of size 256 for 8-bits images, 65536 for 16-bits images). Each bin should not exceed Integer.MAX_VALUE.
+    */
+    public HistogramSegmentation (long[] histo){
+        if (histo==null || histo.length==0) throw new IllegalArgumentException("Histo_seg expect a non empty histogram");
+        this.histo=toIntHisto(histo);
+        init();
+    }
+    
+    /** Builds the histogram of a 8- or 16-bits stack, streaming it plane by plane (see stackStreamer).
+     * @param is specifies the stack to process.
+     * @return the histogram as a long array (of size 256 for 8-bits images, 65536 for 16-bits images).
+    */
+    private static long[] streamHisto(ImageStack is){
+        return new stackStreamer(is, sideViewGenerator.MAX_METHOD, new boolean[]{false, false, false}).getHistogram();
+    }
+    
+    /** Converts a long histogram into an integer one.
+     * @param histo specifies the histogram, each bin not exceeding Integer.MAX_VALUE.
+     * @return the histogram as an integer array.
+    */
+    private static int[] toIntHisto(long[] histo){
+        int[] out=new int[histo.length];
+        for (int i=0; i<histo.length; i++){
+            if (histo[i]>Integer.MAX_VALUE) throw new IllegalArgumentException("Histo_seg expect histogram bins not to exceed "+Integer.MAX_VALUE);
+            out[i]=(int) histo[i];
+        }
+        return out;
+    }
+    
+    /** Sets min and max to the first and last non-empty bins of the histogram and builds the cumulative histograms,
+     * so that the sums over any range of intensities, used by calcLimits and the classes' statistics, are obtained in constant time.
+     * Ranges where the upper limit is below the lower one are considered empty, as when summing bin by bin.
+    */
+    private void init(){
+        int n=this.histo.length;
+        this.min=n;
+        this.max=0;
+        this.cumCount=new long[n+1];
+        this.cumInt=new long[n+1];
+        this.cumLog=new double[n+1];
+        this.cumLogInt=new double[n+1];
+        for (int i=0; i<n; i++){
+            int val=this.histo[i];
+            double logVal=val!=0?Math.log(val):0;
+            if (val!=0){
+                if (i<this.min) this.min=i;
+                this.max=i;
+            }
+            this.cumCount[i+1]=this.cumCount[i]+val;
+            this.cumInt[i+1]=this.cumInt[i]+(long) i*val;
+            this.cumLog[i+1]=this.cumLog[i]+logVal;
+            this.cumLogInt[i+1]=this.cumLogInt[i]+logVal*i;
         }
     }
     
+    /** Builds the histogram of a range of slices, splitting the range in halves down to grain slices and summing the partial histograms.
+    */
+    private class histoTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID=1L;
+
+        ImageStack is;
+        int start, end, grain, nBins;
+        
+        histoTask(ImageStack is, int start, int end, int grain, int nBins){
+            this.is=is;
+            this.start=start;
+            this.end=end;
+            this.grain=grain;
+            this.nBins=nBins;
+        }
+        
+        @Override
+        protected int[] compute(){
+            if (end-start<=grain){
+                int[] histo=new int[nBins];
+                for (int z=start; z<end; z++) addToHisto(is.getPixels(z), histo);
+                return histo;
+            }
+            int middle=(start+end)/2;
+            histoTask first=new histoTask(is, start, middle, grain, nBins);
+            first.fork();
+            int[] histo=new histoTask(is, middle, end, grain, nBins).compute();
+            int[] firstHisto=first.join();
+            for (int i=0; i<nBins; i++) histo[i]+=firstHisto[i];
+            return histo;
+        }
+    }
+    
+    /** Retrieves the minimum and maximum intensities over a range of slices (NaN pixels being ignored), splitting the range in halves down to a single slice.
+     * Returns a double array containing the minimum and the maximum.
+    */
+    private static class rangeTask extends RecursiveTask<double[]> {
+        private static final long serialVersionUID=1L;
+
+        ImageStack is;
+        int start, end;
+        
+        rangeTask(ImageStack is, int start, int end){
+            this.is=is;
+            this.start=start;
+            this.end=end;
+        }
+        
+        @Override
+        protected double[] compute(){
+            if (end-start<=1) return getRange(is.getPixels(start));
+            int middle=(start+end)/2;
+            rangeTask first=new rangeTask(is, start, middle);
+            first.fork();
+            double[] range=new rangeTask(is, middle, end).compute();
+            double[] firstRange=first.join();
+            return new double[]{Math.min(range[0], firstRange[0]), Math.max(range[1], firstRange[1])};
+        }
+    }
+    
+    /** Retrieves the minimum and maximum intensities of a 8-, 16- or 32-bits pixel array, NaN pixels being ignored.
+     * @param pixels specifies the pixel array.
+     * @return a double array containing the minimum and the maximum (respectively +/- infinity if the array only contains NaNs).
+    */
+    private static double[] getRange(Object pixels){
+        float min=Float.POSITIVE_INFINITY, max=Float.NEGATIVE_INFINITY;
+        if (pixels instanceof byte[]){
+            byte[] pix=(byte[]) pixels;
+            for (int i=0; i<pix.length; i++){
+                int val=pix[i]&0xff;
+                if (val<min) min=val;
+                if (val>max) max=val;
+            }
+        }else if (pixels instanceof short[]){
+            short[] pix=(short[]) pixels;
+            for (int i=0; i<pix.length; i++){
+                int val=pix[i]&0xffff;
+                if (val<min) min=val;
+                if (val>max) max=val;
+            }
+        }else{
+            float[] pix=(float[]) pixels;
+            for (int i=0; i<pix.length; i++){
+                float val=pix[i];
+                if (val<min) min=val;
+                if (val>max) max=val;
+            }
+        }
+        return new double[]{min, max};
+    }
+    
+    /** Returns the bin an intensity falls into, intensities out of the histogram's range being put in the first or last bin.
+     * @param value specifies the intensity.
+     * @param nBins specifies the number of bins.
+     * @return the bin number.
+    */
+    private int getBin(double value, int nBins){
+        int bin=(int) ((value-this.binStart)/this.binWidth);
+        return bin<0?0:(bin>=nBins?nBins-1:bin);
+    }
+    
+    /** Adds the pixels of a 8-, 16- or 32-bits pixel array to a histogram, NaN pixels being ignored.
+     * @param pixels specifies the pixel array.
+     * @param histo specifies the histogram to update.
+    */
+    private void addToHisto(Object pixels, int[] histo){
+        if (pixels instanceof byte[]){
+            byte[] pix=(byte[]) pixels;
+            if (this.binLut==null){
+                for (int i=0; i<pix.length; i++) histo[pix[i]&0xff]++;
+            }else{
+                for (int i=0; i<pix.length; i++) histo[this.binLut[pix[i]&0xff]]++;
+            }
+        }else if (pixels instanceof short[]){
+            short[] pix=(short[]) pixels;
+            if (this.binLut==null){
+                for (int i=0; i<pix.length; i++) histo[pix[i]&0xffff]++;
+            }else{
+                for (int i=0; i<pix.length; i++) histo[this.binLut[pix[i]&0xffff]]++;
+            }
+        }else{
+            float[] pix=(float[]) pixels;
+            for (int i=0; i<pix.length; i++) if (!Float.isNaN(pix[i])) histo[getBin(pix[i], histo.length)]++;
+        }
+    }
+    
+    /** Returns the intensity corresponding to a bin, i.e. its lower bound. Without binning, the bin number is the intensity.
+     * @param bin specifies the bin number.
+     * @return the intensity as a double.
+    */
+    public double getValue(int bin){
+        return this.binStart+bin*this.binWidth;
+    }
+    
+    /** Returns the limits found by calcLimits, expressed as intensities (see getValue).
+     * @return a double array containing the limits (has a size of nClasses+1).
+    */
+    public double[] getLimitValues(){
+        if (this.limits==null) throw new IllegalArgumentException("calcLimits has not yet been called.");
+        double[] values=new double[this.limits.length];
+        for (int i=0; i<values.length; i++) values[i]=getValue(this.limits[i]);
+        return values;
+    }
+    
     /** Calculates the limits of intensities for the n classes expected on the histogram.
      * First, the limits are initiated to define the n classes with the same width.
      * For each class, the mean value is defined. The half distance between means is defined as a new boundary (i;e; new limit value).
@@ -88,15 +374,8 @@ public class HistogramSegmentation {
             oldLimits=this.limits.clone();
             
             for (int i=0; i<nClasses; i++){
-                double freq=0, mean=0;
-                int limLow=this.limits[i], limHigh=(i==nClasses-1)?this.limits[i+1]+1:this.limits[i+1];
-
-                for (int j=limLow; j<limHigh; j++){
-                    int val=this.histo[j];
-                    freq+=log?(val!=0?Math.log(val):0):val;
-                    mean+=log?(val!=0?Math.log(val)*j:0):val*j;
-                }
-                means[i]=mean/freq;
+                int limLow=this.limits[i], limHigh=Math.max(limLow, (i==nClasses-1)?this.limits[i+1]+1:this.limits[i+1]);
+                means[i]=log?(this.cumLogInt[limHigh]-this.cumLogInt[limLow])/(this.cumLog[limHigh]-this.cumLog[limLow]):(double) (this.cumInt[limHigh]-this.cumInt[limLow])/(this.cumCount[limHigh]-this.cumCount[limLow]);
             }
             
             //Calculate new limits
@@ -141,15 +420,8 @@ public class HistogramSegmentation {
         nClasse--;
         if (this.limits==null) throw new IllegalArgumentException("calcLimits has not yet been called.");
         if (nClasse<0 || nClasse>this.limits.length-1) throw new IllegalArgumentException("Class number out of the [1-"+(this.limits.length-1)+"] range.");
-        double mean=0;
-        double freq=0;
-        
-        int limLow=this.limits[nClasse], limHigh=(nClasse==this.limits.length-1)?this.limits[nClasse+1]+1:this.limits[nClasse+1];
-        for (int i=limLow; i<limHigh; i++){
-            freq+=this.histo[i];
-            mean+=i*this.histo[i];
-        }
-        return mean/freq;
+        int limLow=this.limits[nClasse], limHigh=Math.max(limLow, (nClasse==this.limits.length-1)?this.limits[nClasse+1]+1:this.limits[nClasse+1]);
+        return this.binStart+this.binWidth*(this.cumInt[limHigh]-this.cumInt[limLow])/(this.cumCount[limHigh]-this.cumCount[limLow]);
     }
     
     /** Calculates the mean intensity of all classes, considering intensities between the [limit(n-1); limit(n)[, except for the last class: [limit(n-1); limit(n)]. .
@@ -172,18 +444,20 @@ public class HistogramSegmentation {
         nClasse--;
         if (this.limits==null) throw new IllegalArgumentException("calcLimits has not yet been called.");
         if (nClasse<0 || nClasse>this.limits.length-1) throw new IllegalArgumentException("Class number out of the [1-"+(this.limits.length-1)+"] range.");
-        int median=0, nbVal=0, limLow=this.limits[nClasse], limHigh=(nClasse==this.limits.length-1)?this.limits[nClasse+1]+1:this.limits[nClasse+1];
-        
-        for (int i=limLow; i<limHigh; i++)nbVal+=this.histo[i];
-        nbVal=nbVal/2;
-        int currNb=0, i=limLow;
-        do{
-            currNb+=histo[i];
-            median=i;
-            i++;
-        }while(currNb<nbVal && i<=limHigh);
+        int limLow=this.limits[nClasse], limHigh=Math.max(limLow, (nClasse==this.limits.length-1)?this.limits[nClasse+1]+1:this.limits[nClasse+1]);
         
-        return median;
+        //The median is the first intensity at which the cumulative count, from limLow, reaches half the class' count: binary search on the cumulative histogram
+        long target=this.cumCount[limLow]+(this.cumCount[limHigh]-this.cumCount[limLow])/2;
+        int low=limLow, high=Math.min(limHigh, this.histo.length-1);
+        while (low<high){
+            int middle=(low+high)>>>1;
+            if (this.cumCount[middle+1]>=target){
+                high=middle;
+            }else{
+                low=middle+1;
+            }
+        }
+        return low;
     }
     
     /** Calculates the median intensity of all classes, considering intensities between the [limit(n-1); limit(n)[, except for the last class: [limit(n-1); limit(n)]. .
@@ -206,13 +480,8 @@ public class HistogramSegmentation {
         nClasse--;
         if (this.limits==null) throw new IllegalArgumentException("calcLimits has not yet been called.");
         if (nClasse<0 || nClasse>this.limits.length-1) throw new IllegalArgumentException("Class number out of the [1-"+(this.limits.length-1)+"] range.");
-        int nb=0;
-        
-        int limLow=this.limits[nClasse], limHigh=(nClasse==this.limits.length-1)?this.limits[nClasse+1]+1:this.limits[nClasse+1];
-        for (int i=limLow; i<limHigh; i++){
-            nb+=this.histo[i];
-        }
-        return nb;
+        int limLow=this.limits[nClasse], limHigh=Math.max(limLow, (nClasse==this.limits.length-1)?this.limits[nClasse+1]+1:this.limits[nClasse+1]);
+        return (int) (this.cumCount[limHigh]-this.cumCount[limLow]);
     }
     
     /** Retrieves the number of pixels within each class, considering intensities between the [limit(n-1); limit(n)[, except for the last class: [limit(n-1); limit(n)]. .
@@ -229,27 +498,24 @@ public class HistogramSegmentation {
     }
     
     /** Calculates the integrated intensity of pixels within the nth class, considering intensities between the [limit(n-1); limit(n)[, except for the last class: [limit(n-1); limit(n)]. .
-     * @return the integrated intensity as an integer.
+     * With binning, each pixel contributes the lower bound of its bin and the result is rounded.
+     * @return the integrated intensity as a long.
     */
-    public int getIntegratedInt(int nClasse){
+    public long getIntegratedInt(int nClasse){
         nClasse--;
         if (this.limits==null) throw new IllegalArgumentException("calcLimits has not yet been called.");
         if (nClasse<0 || nClasse>this.limits.length-1) throw new IllegalArgumentException("Class number out of the [1-"+(this.limits.length-1)+"] range.");
-        int intInt=0;
-        
-        int limLow=this.limits[nClasse], limHigh=(nClasse==this.limits.length-1)?this.limits[nClasse+1]+1:this.limits[nClasse+1];
-        for (int i=limLow; i<limHigh; i++){
-            intInt+=i*this.histo[i];
-        }
-        return intInt;
+        int limLow=this.limits[nClasse], limHigh=Math.max(limLow, (nClasse==this.limits.length-1)?this.limits[nClasse+1]+1:this.limits[nClasse+1]);
+        if (!this.binned) return this.cumInt[limHigh]-this.cumInt[limLow];
+        return Math.round(this.binStart*(this.cumCount[limHigh]-this.cumCount[limLow])+this.binWidth*(this.cumInt[limHigh]-this.cumInt[limLow]));
     }
     
     /** Calculates the integrated intensity of pixels each class, considering intensities between the [limit(n-1); limit(n)[, except for the last class: [limit(n-1); limit(n)]. .
-     * @return the integrated intensity each class as an integer array.
+     * @return the integrated intensity each class as a long array.
     */
-    public int[] getIntegratedInt(){
+    public long[] getIntegratedInt(){
         if (this.limits==null) throw new IllegalArgumentException("calcLimits has not yet been called.");
-        int[] intInt=new int[this.limits.length-1];
+        long[] intInt=new long[this.limits.length-1];
         
         for (int i=1; i<this.limits.length; i++){
             intInt[i-1]=this.getIntegratedInt(i);
@@ -258,34 +524,18 @@ public class HistogramSegmentation {
     }
     
     /** Returns a segmented version of the input ip ImagePlus, where all pixels from the class n will appear carrying an intensity value of n. The segmentation will take for class limits the one calculated for the current HistogramSegmentation object.
+     * 32-bits images give a 8-bits segmented image (16-bits above 255 classes).
      * @return the segmentation result as an ImagePlus.
     */
     public ImagePlus getsegmentedImage(ImagePlus ip){
-        if (this.limits==null) throw new IllegalArgumentException("calcLimits has not yet been called.");
-        ImagePlus dest=IJ.createImage("SegImg_"+ip.getTitle(), ip.getBitDepth()+"-bit", ip.getWidth(), ip.getHeight(), ip.getNSlices());
-        ImageProcessor oriProc, destProc;
-        for (int z=1; z<=ip.getNSlices(); z++){
-            ip.setSlice(z);
-            dest.setSlice(z);
-            oriProc=ip.getProcessor();
-            destProc=dest.getProcessor();
-            for (int y=0; y<ip.getHeight(); y++){
-                for (int x=0; x<ip.getWidth(); x++){
-                    int val=oriProc.get(x, y);
-                    boolean wasChanged=false;
-                    for (int borne=0; borne<this.limits.length-1; borne++){
-                        if (val>=this.limits[borne] && val<this.limits[borne+1]){
-                            destProc.set(x, y, borne+1);
-                            wasChanged=true;
-                        }
-                    }
-                    if (!wasChanged) destProc.set(x, y, this.limits.length-1);
-                }
-            }
-        }
-        dest.setSlice(1);
+        ImageStack is=new ImageStack(ip.getWidth(), ip.getHeight());
+        Object[] buffer=new Object[ip.getNSlices()];
+        boolean toByte=ip.getBitDepth()==8 || (ip.getBitDepth()==32 && this.limits!=null && this.limits.length<=256);
+        for (int z=0; z<buffer.length; z++) buffer[z]=toByte?new byte[ip.getWidth()*ip.getHeight()]:new short[ip.getWidth()*ip.getHeight()];
+        getSegmentation(ip, buffer);
+        for (int z=0; z<buffer.length; z++) is.addSlice("", buffer[z]);
+        ImagePlus dest=new ImagePlus("SegImg_"+ip.getTitle(), is);
         dest.setDisplayRange(0, this.limits.length-1);
-        dest.updateAndDraw();
         return dest;
     }
 
@@ -295,55 +545,192 @@ public class HistogramSegmentation {
     public ImagePlus getsegmentedImage(ImagePlus ip, int nClass){
         if (this.limits==null) throw new IllegalArgumentException("calcLimits has not yet been called.");
         if (nClass<0 || nClass>=this.limits.length) throw new IllegalArgumentException("nClass out of bounds.");
-        ImagePlus dest=NewImage.createImage("SegImg_class_"+nClass+"_"+ip.getTitle(), ip.getWidth(), ip.getHeight(), ip.getNSlices(), 8, NewImage.FILL_BLACK);
-        ImageProcessor oriProc, destProc;
-        for (int z=1; z<=ip.getNSlices(); z++){
-            ip.setSlice(z);
-            dest.setSlice(z);
-            oriProc=ip.getProcessor();
-            destProc=dest.getProcessor();
-            for (int y=0; y<ip.getHeight(); y++){
-                for (int x=0; x<ip.getWidth(); x++){
-                    int val=oriProc.get(x, y);
-                    boolean wasChanged=false;
-                    if (val>=this.limits[nClass]){
-                        destProc.set(x, y, 255);
-                        wasChanged=true;
-                    }
-                    if (!wasChanged) destProc.set(x, y, 0);
-                }
-            }
-        }
-        dest.setSlice(1);
+        int[] lut=getThresholdLut(ip, nClass, 255);
+        ImageStack is=new ImageStack(ip.getWidth(), ip.getHeight());
+        Object[] buffer=new Object[ip.getNSlices()];
+        for (int z=0; z<buffer.length; z++) buffer[z]=new byte[ip.getWidth()*ip.getHeight()];
+        threadTricks.getPool().invoke(new lutTask(ip.getStack(), lut, buffer, null, 0, buffer.length));
+        for (int z=0; z<buffer.length; z++) is.addSlice("", buffer[z]);
+        ImagePlus dest=new ImagePlus("SegImg_class_"+nClass+"_"+ip.getTitle(), is);
         dest.setDisplayRange(0, 255);
-        dest.updateAndDraw();
         return dest;
     }
     
+    /** Segments the input ip ImagePlus into a caller-supplied buffer, where all pixels from the class n will carry an intensity value of n. The segmentation will take for class limits the one calculated for the current HistogramSegmentation object.
+     * Slices are processed in parallel, each pixel's class being read from a lookup table built once from the limits.
+     * @param ip specifies the ImagePlus to segment (8-, 16- or 32-bits). With 32-bits images, NaN pixels are given the value 0.
+     * @param buffer specifies the destination: one byte[], short[] or float[] array per slice, each of size width*height. It may hold the ImagePlus' own pixel arrays, for an in-place segmentation.
+     * @return the buffer.
+    */
+    public Object[] getSegmentation(ImagePlus ip, Object[] buffer){
+        if (buffer.length<ip.getNSlices()) throw new IllegalArgumentException("The buffer should contain one array per slice.");
+        threadTricks.getPool().invoke(new lutTask(ip.getStack(), getClassLut(ip), buffer, null, 0, ip.getNSlices()));
+        return buffer;
+    }
+    
+    /** Returns a packed binary mask of the input ip ImagePlus, where pixels with an intensity at least equal to the lower limit of class nClass are set.
+     * The mask uses a single bit per pixel (a 16th of a 16-bits stack), pixel i of slice z being stored as bit (i%64) of mask[z-1][i/64] (see isInMask).
+     * @param ip specifies the ImagePlus to segment (8-, 16- or 32-bits). With 32-bits images, NaN pixels are never set.
+     * @param nClass specifies the class whose lower limit is used as a threshold.
+     * @return the mask as a long array per slice.
+    */
+    public long[][] getMask(ImagePlus ip, int nClass){
+        if (this.limits==null) throw new IllegalArgumentException("calcLimits has not yet been called.");
+        if (nClass<0 || nClass>=this.limits.length) throw new IllegalArgumentException("nClass out of bounds.");
+        long[][] mask=new long[ip.getNSlices()][(ip.getWidth()*ip.getHeight()+63)/64];
+        threadTricks.getPool().invoke(new lutTask(ip.getStack(), getThresholdLut(ip, nClass, 1), null, mask, 0, mask.length));
+        return mask;
+    }
+    
+    /** Tells whether a pixel is set in a packed mask, as returned by getMask.
+     * @param mask specifies the mask.
+     * @param index specifies the position of the pixel within its slice (x+y*width).
+     * @param slice specifies the slice number, starting from 1.
+     * @return true if the pixel is set.
+    */
+    public static boolean isInMask(long[][] mask, int index, int slice){
+        return (mask[slice-1][index>>>6]&(1L<<index))!=0;
+    }
+    
     /** Applies the segmentaion directly on the input ip ImagePlus. All pixels from the class n will appear carrying an intensity value of n. The segmentation will take for class limits the one calculated for the current HistogramSegmentation object.
     */
     public void doSegmentation(ImagePlus ip){
-        ImageProcessor iproc;
-        for (int z=1; z<=ip.getNSlices(); z++){
-            ip.setSlice(z);
-            iproc=ip.getProcessor();
-            for (int y=0; y<ip.getHeight(); y++){
-                for (int x=0; x<ip.getWidth(); x++){
-                    int val=iproc.get(x, y);
-                    boolean wasChanged=false;
-                    for (int borne=0; borne<this.limits.length-1; borne++){
-                        if (val>=this.limits[borne] && val<this.limits[borne+1]){
-                            iproc.set(x, y, borne+1);
-                            wasChanged=true;
-                        }
-                    }
-                    if (!wasChanged) iproc.set(x, y, this.limits.length-1);
+        ImageStack is=ip.getStack();
+        Object[] buffer=new Object[ip.getNSlices()];
+        for (int z=0; z<buffer.length; z++) buffer[z]=is.getPixels(z+1);
+        getSegmentation(ip, buffer);
+        ip.setDisplayRange(0, this.limits.length-1);
+        ip.updateAndDraw();
+    }
+    
+    /** Builds the lookup table giving the class of each intensity: n for intensities within [limit(n-1); limit(n)[, the number of classes for intensities outside all classes.
+     * @param ip specifies the ImagePlus to segment, used to size the table (see getLutSize).
+     * @return the lookup table as an integer array.
+    */
+    private int[] getClassLut(ImagePlus ip){
+        if (this.limits==null) throw new IllegalArgumentException("calcLimits has not yet been called.");
+        int[] lut=new int[getLutSize(ip)];
+        for (int i=0; i<lut.length; i++){
+            int bin=getLutBin(ip, i);
+            lut[i]=this.limits.length-1;
+            for (int borne=0; borne<this.limits.length-1; borne++) if (bin>=this.limits[borne] && bin<this.limits[borne+1]) lut[i]=borne+1;
+        }
+        return lut;
+    }
+    
+    /** Builds the lookup table of a threshold, set at the lower limit of class nClass.
+     * @param ip specifies the ImagePlus to segment, used to size the table (see getLutSize).
+     * @param nClass specifies the class.
+     * @param value specifies the value given to above-threshold intensities, others being set to 0.
+     * @return the lookup table as an integer array.
+    */
+    private int[] getThresholdLut(ImagePlus ip, int nClass, int value){
+        int[] lut=new int[getLutSize(ip)];
+        for (int i=0; i<lut.length; i++) if (getLutBin(ip, i)>=this.limits[nClass]) lut[i]=value;
+        return lut;
+    }
+    
+    /** Returns the size of the lookup tables: one entry per grey level for 8- and 16-bits images, one entry per bin for 32-bits images.
+     * @param ip specifies the ImagePlus to segment.
+     * @return the size of the lookup tables.
+    */
+    private int getLutSize(ImagePlus ip){
+        int bitDepth=ip.getBitDepth();
+        if (bitDepth!=8 && bitDepth!=16 && bitDepth!=32) throw new IllegalArgumentException("Histo_seg expect a 8-, 16- or 32-bits images");
+        return bitDepth==32?this.histo.length:1<<bitDepth;
+    }
+    
+    /** Returns the bin of a lookup table's entry.
+     * @param ip specifies the ImagePlus to segment.
+     * @param index specifies the entry.
+     * @return the bin number.
+    */
+    private int getLutBin(ImagePlus ip, int index){
+        if (ip.getBitDepth()==32 || !this.binned) return index;
+        return getBin(index, this.histo.length);
+    }
+    
+    /** Applies a lookup table to a range of slices, splitting the range in halves down to a single slice.
+     * Results are written either into the dest arrays (byte[] or short[]) or, as single bits, into the mask.
+    */
+    private class lutTask extends RecursiveAction {
+        private static final long serialVersionUID=1L;
+
+        ImageStack is;
+        int[] lut;
+        Object[] dest;
+        long[][] mask;
+        int start, end;
+        
+        lutTask(ImageStack is, int[] lut, Object[] dest, long[][] mask, int start, int end){
+            this.is=is;
+            this.lut=lut;
+            this.dest=dest;
+            this.mask=mask;
+            this.start=start;
+            this.end=end;
+        }
+        
+        @Override
+        protected void compute(){
+            if (end-start<=1){
+                if (end>start) applyLut(is.getPixels(start+1), lut, dest==null?null:dest[start], mask==null?null:mask[start]);
+            }else{
+                int middle=(start+end)/2;
+                invokeAll(new lutTask(is, lut, dest, mask, start, middle), new lutTask(is, lut, dest, mask, middle, end));
+            }
+        }
+    }
+    
+    /** Applies a lookup table to a 8-, 16- or 32-bits pixel array. 32-bits pixels are first converted to their bin.
+     * @param pixels specifies the source pixel array.
+     * @param lut specifies the lookup table.
+     * @param dest specifies the destination byte[], short[] or float[] array (may be the source array), null if the mask is to be filled.
+     * @param mask specifies the destination packed mask, whose bits are set where the lookup table is non-zero.
+    */
+    private void applyLut(Object pixels, int[] lut, Object dest, long[] mask){
+        int length=Array.getLength(pixels);
+        if (pixels instanceof float[]){
+            float[] pix=(float[]) pixels;
+            for (int i=0; i<length; i++){
+                int val=Float.isNaN(pix[i])?0:lut[getBin(pix[i], lut.length)];
+                if (mask!=null){
+                    if (val!=0) mask[i>>>6]|=1L<<i;
+                }else if (dest instanceof byte[]){
+                    ((byte[]) dest)[i]=(byte) val;
+                }else if (dest instanceof short[]){
+                    ((short[]) dest)[i]=(short) val;
+                }else{
+                    ((float[]) dest)[i]=val;
                 }
             }
+        }else if (mask!=null){
+            if (pixels instanceof byte[]){
+                byte[] pix=(byte[]) pixels;
+                for (int i=0; i<length; i++) if (lut[pix[i]&0xff]!=0) mask[i>>>6]|=1L<<i;
+            }else{
+                short[] pix=(short[]) pixels;
+                for (int i=0; i<length; i++) if (lut[pix[i]&0xffff]!=0) mask[i>>>6]|=1L<<i;
+            }
+        }else if (pixels instanceof byte[]){
+            byte[] pix=(byte[]) pixels;
+            if (dest instanceof byte[]){
+                byte[] out=(byte[]) dest;
+                for (int i=0; i<length; i++) out[i]=(byte) lut[pix[i]&0xff];
+            }else{
+                short[] out=(short[]) dest;
+                for (int i=0; i<length; i++) out[i]=(short) lut[pix[i]&0xff];
+            }
+        }else{
+            short[] pix=(short[]) pixels;
+            if (dest instanceof byte[]){
+                byte[] out=(byte[]) dest;
+                for (int i=0; i<length; i++) out[i]=(byte) lut[pix[i]&0xffff];
+            }else{
+                short[] out=(short[]) dest;
+                for (int i=0; i<length; i++) out[i]=(short) lut[pix[i]&0xffff];
+            }
         }
-        ip.setSlice(1);
-        ip.setDisplayRange(0, this.limits.length-1);
-        ip.updateAndDraw();
     }
 
 }
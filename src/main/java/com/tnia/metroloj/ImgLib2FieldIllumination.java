@@ -0,0 +1,150 @@
+package com.tnia.metroloj;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import metroloJ.fieldIllumination.fieldIllumination;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Field illumination analysis of a 2D {@link RandomAccessibleInterval}, with
+ * no dependence on the window state: it may be run headless and on worker
+ * threads, e.g. on the tiles of a plate scan. As {@link fieldIllumination}
+ * works on integer intensities, the plane is copied into an 8-bit
+ * (UnsignedByteType) or 16-bit (UnsignedShortType) processor as is. Any other
+ * type is linearly rescaled to the full 16-bit range: intensities are
+ * multiplied by a scale so that the maximum maps to 65535, after being offset
+ * by minus the minimum should the image hold negative values. Intensities
+ * reported by the analysis are then expressed in rescaled units (see getScale,
+ * getOffset and toRaw), relative intensities being unchanged when no offset is
+ * needed.
+ */
+public class ImgLib2FieldIllumination<T extends RealType<T>> {
+
+	/** Maximum value of the 16-bit range the images are rescaled to */
+	public static final double MAX_VALUE = 65535;
+
+	private final fieldIllumination result;
+
+	/** Factor applied to the offset intensities */
+	private double scale = 1;
+
+	/** Value added to the intensities before scaling */
+	private double offset = 0;
+
+	/**
+	 * Runs the analysis
+	 *
+	 * @param rai 2D image, dimensions being ordered x, y
+	 * @param calibration calibrated size of a pixel along x and y
+	 * @param unit unit of the calibration
+	 * @param title title of the image, used on the pattern image
+	 */
+	public ImgLib2FieldIllumination(RandomAccessibleInterval<T> rai, double[] calibration,
+		String unit, String title)
+	{
+		if (rai.numDimensions() != 2) throw new IllegalArgumentException(
+			"ImgLib2FieldIllumination requieres a 2D image");
+
+		int w = (int) rai.dimension(0);
+		int h = (int) rai.dimension(1);
+		T type = Util.getTypeFromInterval(rai);
+		boolean is8bits = type instanceof UnsignedByteType;
+		ImageProcessor iproc = is8bits ? new ByteProcessor(w, h) : new ShortProcessor(w, h);
+
+		if (!is8bits && !(type instanceof UnsignedShortType)) {
+			double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+			for (T value : Views.flatIterable(rai)) {
+				double v = value.getRealDouble();
+				if (v < min) min = v;
+				if (v > max) max = v;
+			}
+			offset = min < 0 ? -min : 0;
+			scale = max + offset > 0 ? MAX_VALUE / (max + offset) : 1;
+		}
+
+		// flat iteration order is x fastest, as the processor's pixels
+		Cursor<T> cursor = Views.flatIterable(rai).cursor();
+		int i = 0;
+		while (cursor.hasNext()) {
+			double value = Math.round((cursor.next().getRealDouble() + offset) * scale);
+			iproc.setf(i++, (float) value);
+		}
+
+		ImagePlus ip = new ImagePlus(title, iproc);
+		Calibration cal = ip.getCalibration();
+		cal.pixelWidth = calibration[0];
+		cal.pixelHeight = calibration[1];
+		cal.setUnit(unit);
+
+		result = new fieldIllumination(ip);
+	}
+
+	/**
+	 * Runs the analysis on an ImgPlus, using its calibrated axes. Any axis other
+	 * than x and y (e.g. channel, z or time) is restricted to its first position.
+	 */
+	public static <T extends RealType<T>> ImgLib2FieldIllumination<T> fromImgPlus(
+		ImgPlus<T> img)
+	{
+		AxisType[] types = { Axes.X, Axes.Y };
+		double[] calibration = new double[2];
+		for (int d = 0; d < 2; d++) {
+			int index = img.dimensionIndex(types[d]);
+			if (index < 0) throw new IllegalArgumentException(
+				"ImgLib2FieldIllumination requieres an image with x and y axes");
+			calibration[d] = img.averageScale(index);
+		}
+		String unit = img.axis(img.dimensionIndex(Axes.X)).unit();
+
+		// drop extra axes, last one first so that the remaining indices stay valid
+		RandomAccessibleInterval<T> rai = img;
+		List<AxisType> order = new ArrayList<>();
+		for (int d = 0; d < img.numDimensions(); d++) order.add(img.axis(d).type());
+		for (int d = img.numDimensions() - 1; d >= 0; d--) {
+			AxisType type = order.get(d);
+			if (type != Axes.X && type != Axes.Y) {
+				rai = Views.hyperSlice(rai, d, rai.min(d));
+				order.remove(d);
+			}
+		}
+		if (order.get(0) != Axes.X) rai = Views.permute(rai, 0, 1);
+
+		return new ImgLib2FieldIllumination<>(rai, calibration, unit == null ? "pixel" : unit,
+			img.getName());
+	}
+
+	/** Returns the analysis, intensities being expressed in rescaled units */
+	public fieldIllumination getResult() {
+		return result;
+	}
+
+	/** Returns the factor applied to the offset intensities (1 if not rescaled) */
+	public double getScale() {
+		return scale;
+	}
+
+	/** Returns the value added to the intensities before scaling (0 if not offset) */
+	public double getOffset() {
+		return offset;
+	}
+
+	/** Converts an intensity reported by the analysis back to the input's units */
+	public double toRaw(double value) {
+		return value / scale - offset;
+	}
+}
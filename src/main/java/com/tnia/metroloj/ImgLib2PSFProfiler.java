@@ -0,0 +1,293 @@
+package com.tnia.metroloj;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+import metroloJ.resolution.PSFprofiler;
+import metroloJ.resolution.PSFsettings;
+import metroloJ.resolution.gaussianFit;
+import metroloJ.resolution.gaussianFitter;
+import metroloJ.utilities.tricks.threadTricks;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * PSF analysis working directly on a 3D {@link RandomAccessibleInterval}, without
+ * going through a legacy ImagePlus. Follows {@link PSFprofiler}: the maximum of
+ * intensity is located, x, y and z profiles are read through it and fitted with
+ * a Gaussian, the resolution being the FWHM of the fit. Pixels are only accessed
+ * through cursors and random accesses, so that cell-backed or lazily loaded
+ * images (e.g. opened with SCIFIO) are never copied.
+ */
+public class ImgLib2PSFProfiler<T extends RealType<T>> {
+
+	/** Reference to the x dimension */
+	public static final int X = 0;
+
+	/** Reference to the y dimension */
+	public static final int Y = 1;
+
+	/** Reference to the z dimension */
+	public static final int Z = 2;
+
+	private final RandomAccessibleInterval<T> rai;
+
+	/** Calibrated size of a voxel along x, y and z */
+	private final double[] calibration;
+
+	private final String unit;
+
+	private final PSFsettings settings;
+
+	/** Position of the maximum, relative to the interval's min */
+	private final long[] center = new long[3];
+
+	/** [dimension][0=calibrated distance, 1=raw intensity, 2=fitted data][pixel nb] */
+	private final double[][][] profiles = new double[3][][];
+
+	private final gaussianFit[] fits = new gaussianFit[3];
+
+	private final double[] resol = new double[3];
+
+	/**
+	 * Builds the profiler and runs the analysis
+	 *
+	 * @param rai 3D image, dimensions being ordered x, y, z
+	 * @param calibration calibrated size of a voxel along x, y and z
+	 * @param unit unit of the calibration
+	 * @param settings analysis parameters (zProfileAvgSize and fitRadius are used)
+	 */
+	public ImgLib2PSFProfiler(RandomAccessibleInterval<T> rai, double[] calibration, String unit,
+		PSFsettings settings)
+	{
+		if (rai.numDimensions() != 3) throw new IllegalArgumentException(
+			"ImgLib2PSFProfiler requieres a 3D image");
+
+		this.rai = rai;
+		this.calibration = calibration.clone();
+		this.unit = unit;
+		this.settings = settings.copy();
+
+		findCenter();
+
+		gaussianFitter fitter = new gaussianFitter();
+		for (int d = 0; d < 3; d++) {
+			profiles[d] = new double[3][(int) rai.dimension(d)];
+			readProfile(d);
+			fitProfile(d, fitter);
+		}
+	}
+
+	public ImgLib2PSFProfiler(RandomAccessibleInterval<T> rai, double[] calibration, String unit) {
+		this(rai, calibration, unit, new PSFsettings());
+	}
+
+	/**
+	 * Builds a profiler from an ImgPlus, using its calibrated axes. Any axis
+	 * other than x, y and z (e.g. channel or time) is restricted to its first
+	 * position.
+	 */
+	public static <T extends RealType<T>> ImgLib2PSFProfiler<T> fromImgPlus(ImgPlus<T> img,
+		PSFsettings settings)
+	{
+		AxisType[] types = { Axes.X, Axes.Y, Axes.Z };
+		double[] calibration = new double[3];
+		for (int d = 0; d < 3; d++) {
+			int index = img.dimensionIndex(types[d]);
+			if (index < 0) throw new IllegalArgumentException(
+				"ImgLib2PSFProfiler requieres an image with x, y and z axes");
+			calibration[d] = img.averageScale(index);
+		}
+		String unit = img.axis(img.dimensionIndex(Axes.X)).unit();
+
+		// drop extra axes, last one first so that the remaining indices stay valid
+		RandomAccessibleInterval<T> rai = img;
+		List<AxisType> order = new ArrayList<>();
+		for (int d = 0; d < img.numDimensions(); d++) order.add(img.axis(d).type());
+		for (int d = img.numDimensions() - 1; d >= 0; d--) {
+			AxisType type = order.get(d);
+			if (type != Axes.X && type != Axes.Y && type != Axes.Z) {
+				rai = Views.hyperSlice(rai, d, rai.min(d));
+				order.remove(d);
+			}
+		}
+
+		// put the remaining axes in x, y, z order
+		for (int d = 0; d < 3; d++) {
+			int from = order.indexOf(types[d]);
+			if (from != d) {
+				rai = Views.permute(rai, from, d);
+				order.set(from, order.get(d));
+				order.set(d, types[d]);
+			}
+		}
+
+		return new ImgLib2PSFProfiler<>(rai, calibration, unit == null ? "pixel" : unit,
+			settings);
+	}
+
+	public static <T extends RealType<T>> ImgLib2PSFProfiler<T> fromImgPlus(ImgPlus<T> img) {
+		return fromImgPlus(img, new PSFsettings());
+	}
+
+	/**
+	 * Locates the maximum of intensity, planes being scanned in parallel. Ties
+	 * are resolved in favour of the lowest plane, then of the first position in
+	 * the plane's iteration order.
+	 */
+	private void findCenter() {
+		double[] max = threadTricks.getPool().invoke(new MaxTask(rai.min(Z), rai.max(Z) + 1));
+		center[X] = (long) max[1];
+		center[Y] = (long) max[2];
+		center[Z] = (long) max[3];
+	}
+
+	/**
+	 * Finds the maximum over a range of planes, returned as {value, x, y, z}
+	 * relative to the interval's min.
+	 */
+	private class MaxTask extends RecursiveTask<double[]> {
+
+		final long start, end;
+
+		MaxTask(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected double[] compute() {
+			if (end - start <= 1) {
+				double[] max = { Double.NEGATIVE_INFINITY, 0, 0, start - rai.min(Z) };
+				Cursor<T> cursor = Views.flatIterable(Views.hyperSlice(rai, Z, start))
+					.localizingCursor();
+				while (cursor.hasNext()) {
+					double value = cursor.next().getRealDouble();
+					if (value > max[0]) {
+						max[0] = value;
+						max[1] = cursor.getLongPosition(X) - rai.min(X);
+						max[2] = cursor.getLongPosition(Y) - rai.min(Y);
+					}
+				}
+				return max;
+			}
+			long middle = (start + end) / 2;
+			MaxTask first = new MaxTask(start, middle);
+			first.fork();
+			double[] second = new MaxTask(middle, end).compute();
+			double[] max = first.join();
+			return second[0] > max[0] ? second : max;
+		}
+	}
+
+	/**
+	 * Reads the profile through the center along a single dimension. The z
+	 * profile may be averaged over a settings.zProfileAvgSize wide square.
+	 */
+	private void readProfile(int dimension) {
+		double[][] profile = profiles[dimension];
+		int n = profile[0].length;
+		for (int i = 0; i < n; i++) profile[0][i] = i * calibration[dimension];
+
+		int avgSize = dimension == Z ? Math.max(1, settings.zProfileAvgSize) : 1;
+		long xStart = Math.max(0, center[X] - (avgSize - 1) / 2);
+		long yStart = Math.max(0, center[Y] - (avgSize - 1) / 2);
+		long xEnd = Math.min(rai.dimension(X) - 1, xStart + avgSize - 1);
+		long yEnd = Math.min(rai.dimension(Y) - 1, yStart + avgSize - 1);
+		if (dimension != Z) {
+			xStart = xEnd = center[X];
+			yStart = yEnd = center[Y];
+		}
+		int nPixels = (int) ((xEnd - xStart + 1) * (yEnd - yStart + 1));
+
+		RandomAccess<T> ra = rai.randomAccess();
+		for (long y = yStart; y <= yEnd; y++) {
+			for (long x = xStart; x <= xEnd; x++) {
+				ra.setPosition(rai.min(X) + x, X);
+				ra.setPosition(rai.min(Y) + y, Y);
+				ra.setPosition(rai.min(Z) + center[Z], Z);
+				ra.setPosition(rai.min(dimension), dimension);
+				for (int i = 0; i < n; i++) {
+					profile[1][i] += ra.get().getRealDouble() / nPixels;
+					ra.fwd(dimension);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fits the profile on y = a + (b-a)*exp(-(x-c)^2/(2*d^2)), over a window
+	 * around the center when settings.fitRadius is set, and stores the FWHM (NaN
+	 * if the fit is not valid, see gaussianFit.isValid).
+	 */
+	private void fitProfile(int dimension, gaussianFitter fitter) {
+		double[][] profile = profiles[dimension];
+		int start = 0;
+		int end = profile[0].length - 1;
+		int radius = settings.fitRadius[dimension];
+		if (radius > 0) {
+			int pos = (int) center[dimension];
+			start = Math.max(0, Math.min(pos - radius, end + 1 - gaussianFitter.N_PARAMS));
+			end = Math.min(end, Math.max(pos + radius, start + gaussianFitter.N_PARAMS - 1));
+		}
+
+		double max = profile[1][start];
+		double[] params = { max, max, profile[0][start], 2 * calibration[dimension] };
+		for (int i = start; i <= end; i++) {
+			double value = profile[1][i];
+			params[0] = Math.min(params[0], value);
+			if (value > max) {
+				max = value;
+				params[1] = value;
+				params[2] = profile[0][i];
+			}
+		}
+
+		fits[dimension] = fitter.fit(profile[0], profile[1], start, end - start + 1, params,
+			new gaussianFit());
+		for (int i = 0; i < profile[0].length; i++) profile[2][i] = fits[dimension].f(
+			profile[0][i]);
+		resol[dimension] = fits[dimension].isValid() ? fits[dimension].getFWHM() : Double.NaN;
+	}
+
+	/**
+	 * Returns the x, y and z resolutions (FWHM), in calibrated units, NaN along
+	 * dimensions where the fit did not converge to a finite, positive FWHM
+	 */
+	public double[] getResolutions() {
+		return resol;
+	}
+
+	/** Returns the goodness of the x, y and z fits */
+	public double[] getFitGoodness() {
+		return new double[] { fits[X].fitGoodness, fits[Y].fitGoodness, fits[Z].fitGoodness };
+	}
+
+	/** Returns the position of the maximum, relative to the interval's min */
+	public long[] getCenter() {
+		return center;
+	}
+
+	/**
+	 * Returns a profile as [0=calibrated distance, 1=raw intensity, 2=fitted
+	 * data][pixel nb]
+	 */
+	public double[][] getProfile(int dimension) {
+		return profiles[dimension];
+	}
+
+	public gaussianFit getFit(int dimension) {
+		return fits[dimension];
+	}
+
+	public String getUnit() {
+		return unit;
+	}
+}
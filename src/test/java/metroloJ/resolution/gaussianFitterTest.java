@@ -0,0 +1,110 @@
+package metroloJ.resolution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.measure.CurveFitter;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks gaussianFitter against ImageJ's CurveFitter, which PSFprofiler and zProfiler used before
+ */
+public class gaussianFitterTest {
+
+    /**
+     * Builds a noisy Gaussian profile, as measured through a bead
+     */
+    private static double[][] profile(Random r, int n, double pixelSize){
+        double bg=100+r.nextDouble()*200, amp=500+r.nextDouble()*3000;
+        double centre=(n/2+r.nextDouble()*4-2)*pixelSize, sigma=(1+r.nextDouble()*3)*pixelSize;
+        double[][] out=new double[2][n];
+        for (int i=0; i<n; i++){
+            out[0][i]=i*pixelSize;
+            out[1][i]=bg+amp*Math.exp(-(out[0][i]-centre)*(out[0][i]-centre)/(2*sigma*sigma))+r.nextGaussian()*Math.sqrt(amp)/4;
+        }
+        return out;
+    }
+
+    /**
+     * Initial parameters, as guessed by PSFprofiler: minimum, maximum, position of the maximum and twice the pixel size
+     */
+    private static double[] guess(double[][] profile, double pixelSize){
+        double[] params={profile[1][0], profile[1][0], profile[0][0], 2*pixelSize};
+        for (int i=0; i<profile[0].length; i++){
+            params[0]=Math.min(params[0], profile[1][i]);
+            if (profile[1][i]>params[1]){
+                params[1]=profile[1][i];
+                params[2]=profile[0][i];
+            }
+        }
+        return params;
+    }
+
+    @Test
+    public void widthMatchesCurveFitter(){
+        Random r=new Random(3);
+        gaussianFitter fitter=new gaussianFitter();
+        for (int t=0; t<200; t++){
+            double pixelSize=0.05+r.nextDouble()*0.2;
+            double[][] profile=profile(r, 32+r.nextInt(64), pixelSize);
+            double[] params=guess(profile, pixelSize);
+
+            CurveFitter cv=new CurveFitter(profile[0], profile[1]);
+            cv.setInitialParameters(params.clone());
+            cv.doFit(CurveFitter.GAUSSIAN);
+            double[] expected=cv.getParams();
+
+            gaussianFit fit=fitter.fit(profile[0], profile[1], params);
+            assertTrue("fit "+t+" did not converge", fit.converged);
+            assertEquals("width of fit "+t, expected[3], fit.d, 1e-6*Math.abs(expected[3]));
+            assertEquals("centre of fit "+t, expected[2], fit.c, 1e-6*Math.abs(expected[3]));
+            assertEquals("fit goodness of fit "+t, cv.getFitGoodness(), fit.fitGoodness, 1e-6);
+        }
+    }
+
+    /**
+     * zProfiler fits the full height of an XZ/YZ image, the peak spanning a few pixels only: the fit is started from the half maximum width estimate
+     */
+    @Test
+    public void narrowProfilesConvergeFromHalfMaxGuess(){
+        Random r=new Random(9);
+        gaussianFitter fitter=new gaussianFitter();
+        for (int t=0; t<200; t++){
+            int n=60+r.nextInt(140);
+            double pixelSize=0.1;
+            double bg=100, amp=500+r.nextDouble()*3000, centre=(10+r.nextDouble()*(n-20))*pixelSize, sigma=(0.8+r.nextDouble()*2)*pixelSize;
+            double[] x=new double[n], y=new double[n];
+            for (int i=0; i<n; i++){
+                x[i]=i*pixelSize;
+                y[i]=bg+amp*Math.exp(-(x[i]-centre)*(x[i]-centre)/(2*sigma*sigma))+r.nextGaussian()*5;
+            }
+            double[] params=gaussianFitter.getInitialParams(x, y, 0, n);
+
+            CurveFitter cv=new CurveFitter(x, y);
+            cv.setInitialParameters(params.clone());
+            cv.doFit(CurveFitter.GAUSSIAN);
+            double[] expected=cv.getParams();
+
+            gaussianFit fit=fitter.fit(x, y, params);
+            assertTrue("fit "+t+" is not valid", fit.isValid());
+            assertEquals("width of fit "+t, sigma, fit.d, 0.1*sigma);
+            assertEquals("width of fit "+t, expected[3], fit.d, 1e-6*Math.abs(expected[3]));
+        }
+    }
+
+    @Test
+    public void reusedResultMatchesNewFit(){
+        Random r=new Random(5);
+        gaussianFitter fitter=new gaussianFitter();
+        gaussianFit reused=new gaussianFit();
+        for (int t=0; t<20; t++){
+            double[][] profile=profile(r, 48, 0.1);
+            double[] params=guess(profile, 0.1);
+            gaussianFit expected=new gaussianFitter().fit(profile[0], profile[1], params);
+            fitter.fit(profile[0], profile[1], 0, profile[0].length, params, reused);
+            assertEquals("width of fit "+t, expected.d, reused.d, 0);
+            assertEquals("SSE of fit "+t, expected.SSE, reused.SSE, 0);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package metroloJ.resolution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks zProfilerMap on the synthetic XZ scan of a tilted, curved mirror, whose axial response is a Gaussian of known width
+ */
+public class zProfilerMapTest {
+
+    private static final int WIDTH=400, HEIGHT=120;
+
+    private static final double PIXEL_SIZE=0.1;
+
+    /** Standard deviation of the axial response, in pixels **/
+    private static final double SIGMA=4;
+
+    /** Slope of the mirror at the centre of the image, in pixels per pixel **/
+    private static final double TILT=0.05;
+
+    /** Second order coefficient of the mirror's position, in 1/pixel **/
+    private static final double BOW=1e-4;
+
+    /**
+     * Builds the scan: the mirror's z position is 40+TILT*x+BOW*(x-WIDTH/2)^2 pixels
+     */
+    private static ImagePlus scan(){
+        Random r=new Random(1);
+        short[] pixels=new short[WIDTH*HEIGHT];
+        for (int x=0; x<WIDTH; x++){
+            double zc=40+TILT*x+BOW*(x-WIDTH/2)*(x-WIDTH/2);
+            for (int y=0; y<HEIGHT; y++) pixels[x+y*WIDTH]=(short) Math.round(100+1000*Math.exp(-(y-zc)*(y-zc)/(2*SIGMA*SIGMA))+r.nextGaussian()*5);
+        }
+        ImagePlus ip=new ImagePlus("mirror", new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+        ip.getCalibration().pixelWidth=PIXEL_SIZE;
+        ip.getCalibration().pixelHeight=PIXEL_SIZE;
+        ip.getCalibration().setUnit("micron");
+        return ip;
+    }
+
+    @Test
+    public void resolutionTiltAndCurvatureWithinOnePercent(){
+        zProfilerMap map=new zProfilerMap(scan(), 10, 10);
+        double expected=2*zProfiler.SQRT2LN2*SIGMA*PIXEL_SIZE;
+        double[] resolutions=map.getResolutions();
+        assertEquals("number of windows", WIDTH/10, resolutions.length);
+        for (int i=0; i<resolutions.length; i++) assertEquals("FWHM of window "+i, expected, resolutions[i], 0.01*expected);
+
+        // calibrated lateral and axial pixel sizes are equal: slopes are unchanged, the second derivative is divided by the pixel size
+        assertEquals("tilt", TILT, map.getTilt(), 0.01*TILT);
+        assertEquals("curvature", 2*BOW/PIXEL_SIZE, map.getCurvature(), 0.01*2*BOW/PIXEL_SIZE);
+    }
+
+    @Test
+    public void windowsMatchZProfiler(){
+        ImagePlus ip=scan();
+        zProfilerMap map=new zProfilerMap(ip, 20, 40);
+        double[] resolutions=map.getResolutions();
+        for (int i=0; i<resolutions.length; i++){
+            assertNotNull("window "+i, map.getProfiler(i));
+            zProfiler profiler=new zProfiler(ip, new Roi(i*40, 0, 20, HEIGHT));
+            assertEquals("FWHM of window "+i, profiler.getResolution(), resolutions[i], 1e-9*profiler.getResolution());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package metroloJ.utilities;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks proj2D's running accumulators against the former implementation, which copied the ROI into an array and sorted each line
+ */
+public class proj2DTest {
+
+    /**
+     * Former doProj, reading the ROI's bounding rectangle through get(x, y)
+     */
+    private static double[] baselineProj(ImagePlus ip, int projType, int projAxis, int x, int y, int width, int height){
+        int[][] array=projAxis==proj2D.X_AXIS?new int[height][width]:new int[width][height];
+        for (int j=y; j<y+height; j++){
+            for (int i=x; i<x+width; i++){
+                if (projAxis==proj2D.X_AXIS){
+                    array[j-y][i-x]=ip.getProcessor().get(i, j);
+                }else{
+                    array[i-x][j-y]=ip.getProcessor().get(i, j);
+                }
+            }
+        }
+        double[] proj=new double[array.length];
+        for (int i=0; i<proj.length; i++){
+            int[] line=array[i];
+            double projVal=0;
+            switch(projType){
+                case proj2D.AVG_METHOD: for (int k=0; k<line.length; k++) projVal+=line[k]; projVal/=line.length; break;
+                case proj2D.MIN_METHOD: Arrays.sort(line); projVal=line[0]; break;
+                case proj2D.SUM_METHOD: for (int k=0; k<line.length; k++) projVal+=line[k]; break;
+                case proj2D.SD_METHOD: double avg=0; for (int k=0; k<line.length; k++) avg+=line[k]; avg/=line.length; for (int k=0; k<line.length; k++) projVal+=(line[k]-avg)*(line[k]-avg); projVal=Math.sqrt(projVal/line.length); break;
+                case proj2D.MEDIAN_METHOD: Arrays.sort(line); projVal=line[(int) (line.length/2+.5)]; break;
+                default: Arrays.sort(line); projVal=line[line.length-1]; break;
+            }
+            proj[i]=projVal;
+        }
+        return proj;
+    }
+
+    /**
+     * Builds a noisy image holding a bright, blurred spot
+     */
+    private static ImagePlus image(Random r, int bitDepth){
+        int w=120, h=80;
+        ImageProcessor iproc=bitDepth==8?new ByteProcessor(w, h):new ShortProcessor(w, h);
+        double max=bitDepth==8?255:4095;
+        for (int y=0; y<h; y++){
+            for (int x=0; x<w; x++){
+                double val=0.1*max+r.nextGaussian()*0.02*max+0.8*max*Math.exp(-((x-60)*(x-60)+(y-40)*(y-40))/200.0);
+                iproc.set(x, y, (int) Math.max(0, Math.min(max, Math.round(val))));
+            }
+        }
+        return new ImagePlus("proj2D", iproc);
+    }
+
+    @Test
+    public void rectanglesMatchBaseline(){
+        Random r=new Random(1);
+        for (int bitDepth: new int[]{8, 16}){
+            ImagePlus ip=image(r, bitDepth);
+            for (int projType=proj2D.AVG_METHOD; projType<=proj2D.MEDIAN_METHOD; projType++){
+                for (int projAxis=proj2D.X_AXIS; projAxis<=proj2D.Y_AXIS; projAxis++){
+                    proj2D proj=new proj2D();
+                    proj.setProjType(projType, projAxis);
+                    for (int k=0; k<30; k++){
+                        int x=r.nextInt(ip.getWidth()-1), y=r.nextInt(ip.getHeight()-1);
+                        int width=1+r.nextInt(ip.getWidth()-x), height=1+r.nextInt(ip.getHeight()-y);
+                        double[] expected=baselineProj(ip, projType, projAxis, x, y, width, height);
+                        double[] found=proj.doProj(ip, x, y, width, height);
+                        assertEquals("length", expected.length, found.length);
+                        for (int i=0; i<expected.length; i++){
+                            assertEquals(bitDepth+"-bits, type "+projType+", axis "+projAxis+", line "+i, expected[i], found[i], 1e-12*Math.max(1, Math.abs(expected[i])));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void ovalIsProjectedThroughItsMask(){
+        ImagePlus ip=image(new Random(2), 16);
+        OvalRoi oval=new OvalRoi(40, 20, 40, 40);
+        proj2D proj=new proj2D();
+        proj.setProjType(proj2D.MIN_METHOD, proj2D.X_AXIS);
+        double[] found=proj.doProj(ip, oval);
+        assertEquals("length", 40, found.length);
+        for (int j=0; j<40; j++){
+            double min=Double.POSITIVE_INFINITY;
+            for (int i=40; i<80; i++) if (oval.contains(i, 20+j)) min=Math.min(min, ip.getProcessor().get(i, 20+j));
+            assertEquals("line "+j, min, found[j], 0);
+        }
+    }
+}
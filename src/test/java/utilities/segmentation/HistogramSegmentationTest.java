@@ -0,0 +1,140 @@
+package utilities.segmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the cumulative histogram implementation of HistogramSegmentation against the former bin by bin loops, reproduced below
+ */
+public class HistogramSegmentationTest {
+
+    /** Number of random histograms per test **/
+    private static final int N_RUNS=300;
+
+    /**
+     * Builds a fluorescence like histogram: a noisy background peak and one or two dimmer, wider signal peaks
+     */
+    private static int[] histogram(Random r, int nBins){
+        int[] histo=new int[nBins];
+        double bg=nBins*(0.02+r.nextDouble()*0.05);
+        int nPeaks=1+r.nextInt(2);
+        for (int n=0; n<20000+r.nextInt(20000); n++){
+            double val=bg+r.nextGaussian()*nBins*0.005;
+            int peak=r.nextInt(4);
+            if (peak<nPeaks) val=nBins*(0.3+0.3*peak+r.nextDouble()*0.1)+r.nextGaussian()*nBins*0.05;
+            histo[(int) Math.max(0, Math.min(nBins-1, Math.round(val)))]++;
+        }
+        return histo;
+    }
+
+    /**
+     * Former calcLimits: sums the frequencies bin by bin at each iteration
+     */
+    private static int[] baselineLimits(int[] histo, int nClasses, int maxIt, int epsilon, boolean log){
+        int min=histo.length, max=0;
+        for (int i=0; i<histo.length; i++){
+            if (histo[i]!=0){
+                min=Math.min(min, i);
+                max=i;
+            }
+        }
+        double[] means=new double[nClasses];
+        int[] limits=new int[nClasses+1], oldLimits;
+        limits[0]=min;
+        limits[nClasses]=max;
+        for (int i=1; i<nClasses; i++) limits[i]=limits[i-1]+(max-min)/nClasses;
+
+        int it=0;
+        int convFact;
+        do{
+            oldLimits=limits.clone();
+            for (int i=0; i<nClasses; i++){
+                double freq=0, mean=0;
+                int limLow=limits[i], limHigh=(i==nClasses-1)?limits[i+1]+1:limits[i+1];
+                for (int j=limLow; j<limHigh; j++){
+                    int val=histo[j];
+                    freq+=log?(val!=0?Math.log(val):0):val;
+                    mean+=log?(val!=0?Math.log(val)*j:0):val*j;
+                }
+                means[i]=mean/freq;
+            }
+            for (int i=1; i<nClasses; i++) limits[i]=(int) Math.floor((means[i-1]+means[i])/2);
+            convFact=0;
+            for (int i=0; i<nClasses+1; i++) convFact+=Math.abs(limits[i]-oldLimits[i]);
+            it++;
+        }while(it<maxIt && convFact>epsilon);
+        return limits;
+    }
+
+    /**
+     * Former class statistics: number of pixels, integrated intensity, mean and median of class c (1-based)
+     */
+    private static double[] baselineStats(int[] histo, int[] limits, int c){
+        c--;
+        long nb=0, intInt=0;
+        int limLow=limits[c], limHigh=(c==limits.length-1)?limits[c+1]+1:limits[c+1];
+        for (int i=limLow; i<limHigh; i++){
+            nb+=histo[i];
+            intInt+=(long) i*histo[i];
+        }
+        int median=0, currNb=0, i=limLow;
+        do{
+            currNb+=histo[i];
+            median=i;
+            i++;
+        }while(currNb<nb/2 && i<=limHigh);
+        return new double[]{nb, intInt, (double) intInt/nb, median};
+    }
+
+    @Test
+    public void linearLimitsAndStatisticsMatchBaseline(){
+        Random r=new Random(7);
+        for (int t=0; t<N_RUNS; t++){
+            int[] histo=histogram(r, t%2==0?256:4096);
+            HistogramSegmentation hs=new HistogramSegmentation(histo);
+            for (int nClasses=2; nClasses<=4; nClasses++){
+                int[] expected=baselineLimits(histo, nClasses, 1000, 0, false);
+                int[] limits=hs.calcLimits(nClasses, 1000, 0, false).clone();
+                assertArrayEquals("limits of run "+t+", "+nClasses+" classes", expected, limits);
+                for (int c=1; c<=nClasses; c++){
+                    double[] stats=baselineStats(histo, limits, c);
+                    String msg="class "+c+" of run "+t+", "+nClasses+" classes";
+                    assertEquals(msg, (long) stats[0], hs.getNb(c));
+                    assertEquals(msg, (long) stats[1], hs.getIntegratedInt(c));
+                    assertEquals(msg, stats[2], hs.getMean(c), 1e-9*Math.max(1, Math.abs(stats[2])));
+                    assertEquals(msg, (long) stats[3], hs.getMedian(c));
+                }
+            }
+        }
+    }
+
+    /**
+     * In log mode, the class means are ratios of sums of logarithms: summed in a different order, they may differ in their last bits.
+     * When the midpoint of two means falls within this rounding error of an integer, the limit may be off by one.
+     * Such cases should remain rare and never exceed one grey level.
+     */
+    @Test
+    public void logLimitsMatchBaselineWithinOneLevel(){
+        Random r=new Random(11);
+        int nLimits=0, nOff=0;
+        for (int t=0; t<N_RUNS; t++){
+            int[] histo=histogram(r, t%2==0?256:4096);
+            HistogramSegmentation hs=new HistogramSegmentation(histo);
+            for (int nClasses=2; nClasses<=4; nClasses++){
+                int[] expected=baselineLimits(histo, nClasses, 1000, 0, true);
+                int[] limits=hs.calcLimits(nClasses, 1000, 0, true);
+                for (int i=0; i<limits.length; i++){
+                    int diff=Math.abs(expected[i]-limits[i]);
+                    assertTrue("limit "+i+" of run "+t+", "+nClasses+" classes: "+expected[i]+" expected, "+limits[i]+" found", diff<=1);
+                    if (diff!=0) nOff++;
+                    nLimits++;
+                }
+            }
+        }
+        assertTrue(nOff+" limits off by one out of "+nLimits, nOff<=nLimits/100);
+    }
+}